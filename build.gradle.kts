@@ -6,6 +6,7 @@ plugins {
     `java-library`
     id("org.gradlex.extra-java-module-info") version "1.14"
     id("com.vanniktech.maven.publish") version "0.36.0"
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 java {
@@ -14,7 +15,7 @@ java {
     }
 }
 
-version = "0.11.0"
+version = "0.12.0"
 group = "com.abissell"
 
 repositories {
@@ -28,8 +29,44 @@ tasks.withType<JavaCompile>().configureEach {
 }
 
 tasks.test {
-    useJUnitPlatform()
+    useJUnitPlatform {
+        excludeTags("load")
+    }
+    jvmArgs("--enable-preview")
+}
+
+// LoadTest's latency budgets depend on the machine, so it only runs on request.
+val loadTest by tasks.registering(Test::class) {
+    description = "Runs the load tests."
+    group = "verification"
+    testClassesDirs = sourceSets.test.get().output.classesDirs
+    classpath = sourceSets.test.get().runtimeClasspath
+    useJUnitPlatform {
+        includeTags("load")
+    }
     jvmArgs("--enable-preview")
+    System.getProperties().stringPropertyNames()
+        .filter { it.startsWith("logutil.load.") }
+        .forEach { systemProperty(it, System.getProperty(it)) }
+}
+
+jmh {
+    jmhVersion = "1.37"
+    benchmarkMode = listOf("thrpt", "avgt")
+    timeUnit = "us"
+    profilers = listOf("gc")
+    fork = 1
+    warmupIterations = 3
+    iterations = 5
+    jvmArgsAppend = listOf("--enable-preview")
+    resultFormat = "JSON"
+}
+
+// JMH and its dependencies are plain classpath jars; keep them out of the module transform.
+configurations.matching { it.name.startsWith("jmh") }.configureEach {
+    attributes {
+        attribute(Attribute.of("javaModule", Boolean::class.javaObjectType), false)
+    }
 }
 
 tasks.withType<Javadoc>().configureEach {
@@ -47,6 +84,7 @@ dependencies {
     testImplementation("org.junit.jupiter:junit-jupiter-api")
     testRuntimeOnly("org.junit.jupiter:junit-jupiter-engine")
     testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+    testRuntimeOnly("com.lmax:disruptor:4.0.0")
 }
 
 extraJavaModuleInfo {
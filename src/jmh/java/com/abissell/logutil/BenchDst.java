@@ -0,0 +1,48 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+enum BenchDst implements LogDst {
+    D0("bench.0"),
+    D1("bench.1"),
+    D2("bench.2"),
+    D3("bench.3");
+
+    static { Log.setLevel(Level.INFO); }
+
+    private final Logger logger;
+
+    BenchDst(String loggerKey) {
+        this.logger = LogManager.getLogger(loggerKey);
+    }
+
+    @Override
+    public Logger getLogger() {
+        return logger;
+    }
+
+    static String[] loggerNames() {
+        var names = new String[values().length];
+        for (BenchDst dst : values()) {
+            names[dst.ordinal()] = dst.logger.getName();
+        }
+        return names;
+    }
+}
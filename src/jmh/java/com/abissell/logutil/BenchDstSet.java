@@ -0,0 +1,42 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+/**
+ * Sixteen single-destination sets spread over the four {@link BenchDst}s,
+ * followed by sets which fan out to one, two and four destinations, for a
+ * topology of roughly the size seen in production configurations.
+ */
+enum BenchDstSet implements LogDstSet<BenchDst> {
+    S00(BenchDst.D0), S01(BenchDst.D1), S02(BenchDst.D2), S03(BenchDst.D3),
+    S04(BenchDst.D0), S05(BenchDst.D1), S06(BenchDst.D2), S07(BenchDst.D3),
+    S08(BenchDst.D0), S09(BenchDst.D1), S10(BenchDst.D2), S11(BenchDst.D3),
+    S12(BenchDst.D0), S13(BenchDst.D1), S14(BenchDst.D2), S15(BenchDst.D3),
+    FAN1(BenchDst.D0),
+    FAN2(BenchDst.D0, BenchDst.D1),
+    FAN4(BenchDst.D0, BenchDst.D1, BenchDst.D2, BenchDst.D3);
+
+    private final BenchDst[] set;
+
+    BenchDstSet(BenchDst... dsts) {
+        this.set = dsts;
+    }
+
+    @Override
+    public BenchDst[] set() {
+        return set;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.LoggerConfig;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A log4j {@code Appender} which hands every message it receives to a JMH
+ * {@link Blackhole} instead of a layout and output stream, so that benchmarks
+ * measure the cost of this library and log4j's dispatch rather than disk I/O.
+ * Messages which can render themselves into a {@code StringBuilder} are
+ * formatted into a reused builder, mirroring what a garbage-free layout does.
+ *
+ * <p> Not thread-safe; intended for single-threaded benchmarks only.
+ */
+final class BlackholeAppender extends AbstractAppender {
+    private final Blackhole bh;
+    private final StringBuilder text = new StringBuilder(1024);
+
+    private BlackholeAppender(String name, Blackhole bh) {
+        super(name, null, null, true, Property.EMPTY_ARRAY);
+        this.bh = bh;
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        var msg = event.getMessage();
+        if (msg instanceof StringBuilderFormattable formattable) {
+            text.setLength(0);
+            formattable.formatTo(text);
+            bh.consume(text.length());
+            bh.consume(text);
+        } else {
+            bh.consume(msg.getFormattedMessage());
+        }
+    }
+
+    /**
+     * Replaces the configuration of each named logger with one which accepts
+     * every level and writes only to a new {@code BlackholeAppender}.
+     */
+    static void attach(Blackhole bh, String... loggerNames) {
+        var ctx = (LoggerContext) LogManager.getContext(false);
+        var config = ctx.getConfiguration();
+        var appender = new BlackholeAppender("Blackhole", bh);
+        appender.start();
+        config.addAppender(appender);
+        for (String loggerName : loggerNames) {
+            var loggerConfig = LoggerConfig.newBuilder()
+                    .withAdditivity(false)
+                    .withLevel(Level.TRACE)
+                    .withLoggerName(loggerName)
+                    .withIncludeLocation("false")
+                    .withConfig(config)
+                    .build();
+            loggerConfig.addAppender(appender, null, null);
+            config.removeLogger(loggerName);
+            config.addLogger(loggerName, loggerConfig);
+        }
+        ctx.updateLoggers();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of the unbuffered {@code Log.to(LogDstSet, ...)} calls as they fan out
+ * to one, two and four destinations, and of the same calls at a disabled
+ * level.
+ */
+@State(Scope.Thread)
+public class LogBenchmark {
+    @Param({"FAN1", "FAN2", "FAN4"})
+    public BenchDstSet dstSet;
+
+    private final String prefix = "order ";
+    private final String msg = "filled px=101.0625 qty=300";
+    private final Object obj = Long.valueOf(1_234_567_890_123L);
+
+    @Setup
+    public void setup(Blackhole bh) {
+        BlackholeAppender.attach(bh, BenchDst.loggerNames());
+    }
+
+    @Benchmark
+    public void toMessage() {
+        Log.INFO.to(dstSet, msg);
+    }
+
+    @Benchmark
+    public void toPrefixString() {
+        Log.INFO.to(dstSet, prefix, msg);
+    }
+
+    @Benchmark
+    public void toObject() {
+        Log.INFO.to(dstSet, obj);
+    }
+
+    @Benchmark
+    public void toSupplier() {
+        Log.INFO.to(dstSet, prefix, () -> msg);
+    }
+
+    @Benchmark
+    public void toDisabledSupplier() {
+        Log.DEBUG.to(dstSet, prefix, () -> msg);
+    }
+}
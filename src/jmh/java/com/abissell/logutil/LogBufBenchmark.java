@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of {@code LogBuf.to(S, Log)} lookups for enabled and disabled levels,
+ * and of flushing an event which wrote to {@code dirtySets} of the
+ * {@link BenchDstSet}s, both directly and through {@link EventLog#close()}.
+ */
+@State(Scope.Thread)
+public class LogBufBenchmark {
+    @Param({"1", "4", "16"})
+    public int dirtySets;
+
+    private final BenchDstSet[] sets = BenchDstSet.values();
+    private LogBuf<BenchDstSet> logBuf;
+    private long seq;
+    private int next;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        BlackholeAppender.attach(bh, BenchDst.loggerNames());
+        logBuf = LogBuf.create(sets);
+    }
+
+    @Benchmark
+    public OptBuf toEnabled() {
+        next = (next + 1) & 15;
+        return logBuf.to(sets[next], Log.INFO);
+    }
+
+    @Benchmark
+    public OptBuf toDisabled() {
+        next = (next + 1) & 15;
+        return logBuf.to(sets[next], Log.DEBUG);
+    }
+
+    @Benchmark
+    public void flush() {
+        fill(logBuf);
+        logBuf.flush();
+    }
+
+    @Benchmark
+    public void eventLog() {
+        try (var eventLog = new EventLog<>(logBuf)) {
+            fill(logBuf);
+            eventLog.to(BenchDstSet.S00, Log.DEBUG).add("dropped ").add(seq);
+        }
+    }
+
+    private void fill(LogBuf<BenchDstSet> buf) {
+        long id = seq++;
+        for (int i = 0; i < dirtySets; i++) {
+            buf.to(sets[i], Log.INFO).add("order ").add(id).add(" set=").add(i);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-call cost of each {@code OptBuf.Buf.add(...)} overload, and of the same
+ * chain of appends against {@code OptBuf.NOOP} as used for disabled levels.
+ * Every {@code Buf} benchmark clears its builder first so that the backing
+ * array stays small and warm.
+ */
+@State(Scope.Thread)
+public class OptBufBenchmark {
+    private final OptBuf.Buf buf = new OptBuf.Buf(new StringBuilder(256));
+    private final OptBuf noop = OptBuf.NOOP;
+    private final List<String> items = List.of("a", "b", "c", "d");
+
+    private boolean boolVal = true;
+    private byte byteVal = 7;
+    private char charVal = 'x';
+    private short shortVal = 1234;
+    private int intVal = 123_456_789;
+    private long longVal = 1_234_567_890_123L;
+    private float floatVal = 1.25f;
+    private double doubleVal = 101.0625;
+    private String strVal = "some event detail";
+    private CharSequence charsVal = new StringBuilder("some event detail");
+    private Object objVal = Integer.valueOf(42);
+
+    private OptBuf.Buf cleared() {
+        buf.buf().setLength(0);
+        return buf;
+    }
+
+    @Benchmark
+    public OptBuf addBoolean() {
+        return cleared().add(boolVal);
+    }
+
+    @Benchmark
+    public OptBuf addByte() {
+        return cleared().add(byteVal);
+    }
+
+    @Benchmark
+    public OptBuf addChar() {
+        return cleared().add(charVal);
+    }
+
+    @Benchmark
+    public OptBuf addShort() {
+        return cleared().add(shortVal);
+    }
+
+    @Benchmark
+    public OptBuf addInt() {
+        return cleared().add(intVal);
+    }
+
+    @Benchmark
+    public OptBuf addLong() {
+        return cleared().add(longVal);
+    }
+
+    @Benchmark
+    public OptBuf addFloat() {
+        return cleared().add(floatVal);
+    }
+
+    @Benchmark
+    public OptBuf addDouble() {
+        return cleared().add(doubleVal);
+    }
+
+    @Benchmark
+    public OptBuf addString() {
+        return cleared().add(strVal);
+    }
+
+    @Benchmark
+    public OptBuf addCharSequence() {
+        return cleared().add(charsVal);
+    }
+
+    @Benchmark
+    public OptBuf addObject() {
+        return cleared().add(objVal);
+    }
+
+    @Benchmark
+    public OptBuf addSupplier() {
+        return cleared().add(() -> strVal);
+    }
+
+    @Benchmark
+    public OptBuf addIterator() {
+        return cleared().add(items.iterator(), s -> s);
+    }
+
+    @Benchmark
+    public OptBuf eventBuf() {
+        return event(cleared());
+    }
+
+    @Benchmark
+    public OptBuf eventNoop() {
+        return event(noop);
+    }
+
+    private OptBuf event(OptBuf optBuf) {
+        return optBuf.add("fill ").add(longVal)
+                .add(" px=").add(doubleVal)
+                .add(" qty=").add(intVal)
+                .add(" side=").add(charVal)
+                .add(" last=").add(boolVal);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Delivers buffers handed off by {@link LogBuf#flush()} to their loggers on a
+ * background drainer thread, taking log4j's dispatch, layout and appender
+ * work off the thread which filled them. Create a {@code LogBuf} with
+ * {@link LogBuf#create(Enum[], AsyncFlusher)} to use one.
+ *
+ * <p> On flush, each non-empty buffer of such a {@code LogBuf} is swapped
+ * for a spare in O(1) and published to a bounded lock-free ring. Once the
+ * drainer has logged a buffer's contents it clears the buffer and returns it
+ * to the {@code LogBuf} it came from, which reuses it as a future spare.
+ * What happens when the ring is full is governed by a {@link Backpressure}
+ * policy.
+ *
+ * <p> The drainer may run on a platform or a virtual thread, as chosen by
+ * the {@code ThreadFactory} passed to {@link #start}. Once it finds nothing
+ * to deliver it spins briefly and then parks until the next buffer is
+ * published. An exception thrown while delivering to a destination, as by
+ * an appender which does not ignore exceptions, is counted by
+ * {@link #failed()} and reported to log4j's {@code StatusLogger}, and the
+ * drainer carries on.
+ */
+public final class AsyncFlusher implements AutoCloseable {
+    public enum Backpressure {
+        /**
+         * The flushing thread waits until the drainer frees a slot.
+         */
+        BLOCK,
+        /**
+         * Buffers are dropped rather than waited on, lowest levels first: a
+         * buffer is only published while the ring has more free slots than
+         * are reserved for the levels above its own. Dropped buffers are
+         * counted by {@link #dropped()}.
+         */
+        DROP_LOWEST_LEVEL,
+        /**
+         * Buffers which do not fit in the ring spill into an unbounded
+         * overflow queue, which is drained after the ring.
+         */
+        GROW
+    }
+
+    private record Pending(Log log, LogDst[] dsts, OptBuf buf, Throwable thrown,
+                           Queue<OptBuf> returns) {}
+
+    private static final int SPINS = 100;
+    private static final long PARK_NANOS = 50_000L;
+    private static final int LEVELS = Log.values().length;
+
+    private final FlushRing ring;
+    private final Queue<Pending> overflow = new ConcurrentLinkedQueue<>();
+    private final Backpressure backpressure;
+    private final LogBuf.FlushMode flushMode;
+    private final BufMessage message = new BufMessage();
+    private final FlushRing.Sink deliver = this::deliver;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    // Publishes which may still reach the ring, so close() can wait them out
+    private final AtomicInteger publishing = new AtomicInteger();
+    private volatile boolean running = true;
+    private volatile boolean parked;
+    private Thread drainer;
+
+    private AsyncFlusher(int capacity, Backpressure backpressure, LogBuf.FlushMode flushMode) {
+        this.ring = new FlushRing(capacity);
+        this.backpressure = backpressure;
+        this.flushMode = flushMode;
+    }
+
+    public static AsyncFlusher start(ThreadFactory threadFactory, int capacity,
+                                     Backpressure backpressure) {
+        return start(threadFactory, capacity, backpressure, LogBuf.FlushMode.REUSABLE_MESSAGE);
+    }
+
+    public static AsyncFlusher start(ThreadFactory threadFactory, int capacity,
+                                     Backpressure backpressure, LogBuf.FlushMode flushMode) {
+        var flusher = new AsyncFlusher(capacity, backpressure, flushMode);
+        flusher.drainer = threadFactory.newThread(flusher::drain);
+        flusher.drainer.start();
+        return flusher;
+    }
+
+    /**
+     * The number of buffers discarded because the ring was full under
+     * {@link Backpressure#DROP_LOWEST_LEVEL}, or because this flusher was
+     * closed while they waited for a slot.
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * The number of deliveries of a buffer to one of its destinations which
+     * threw. The buffer's other destinations are still delivered to.
+     */
+    public long failed() {
+        return failed.sum();
+    }
+
+    /**
+     * Stops accepting buffers, waits for the drainer to deliver everything
+     * already published, including by flushes racing with this call which
+     * were accepted, and stops it.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hands {@code buf} and {@code thrown}, which may be {@code null}, to the
+     * drainer. Returns {@code false} if it was not accepted, in which case the
+     * caller still owns it.
+     */
+    boolean publish(Log log, LogDst[] dsts, OptBuf buf, Throwable thrown,
+                    Queue<OptBuf> returns) {
+        publishing.incrementAndGet();
+        try {
+            if (!offer(log, dsts, buf, thrown, returns)) {
+                return false;
+            }
+        } finally {
+            publishing.decrementAndGet();
+        }
+        if (parked) {
+            LockSupport.unpark(drainer);
+        }
+        return true;
+    }
+
+    private boolean offer(Log log, LogDst[] dsts, OptBuf buf, Throwable thrown,
+                          Queue<OptBuf> returns) {
+        if (!running) {
+            dropped.increment();
+            return false;
+        }
+        switch (backpressure) {
+            case BLOCK -> {
+                while (!ring.offer(log, dsts, buf, thrown, returns)) {
+                    if (!running) {
+                        dropped.increment();
+                        return false;
+                    }
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+            case DROP_LOWEST_LEVEL -> {
+                int reserved = ring.capacity() * (LEVELS - 1 - log.ordinal()) / LEVELS;
+                if (ring.capacity() - ring.size() <= reserved
+                        || !ring.offer(log, dsts, buf, thrown, returns)) {
+                    dropped.increment();
+                    return false;
+                }
+            }
+            case GROW -> {
+                if (!overflow.isEmpty() || !ring.offer(log, dsts, buf, thrown, returns)) {
+                    overflow.add(new Pending(log, dsts, buf, thrown, returns));
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Runs until closed and every accepted buffer is delivered. A publish
+     * counted in publishing has either seen running cleared and given up, or
+     * will reach the ring or overflow before it is uncounted, so nothing
+     * offered can arrive after the final check.
+     */
+    private void drain() {
+        int idle = 0;
+        while (running || publishing.get() > 0 || !ring.isEmpty() || !overflow.isEmpty()) {
+            if (ring.poll(deliver) || pollOverflow()) {
+                idle = 0;
+            } else if (++idle < SPINS) {
+                Thread.onSpinWait();
+            } else {
+                idle = 0;
+                park();
+            }
+        }
+    }
+
+    /*
+     * Parks until a publish or close() unparks the drainer. Setting parked
+     * before re-checking for work, like publish() offering before reading
+     * parked, ensures one of the two sees the other. While closing, a
+     * publish may give up without offering anything or unparking, so the
+     * drainer only parks briefly.
+     */
+    private void park() {
+        parked = true;
+        if (!ring.isEmpty() || !overflow.isEmpty()) {
+            parked = false;
+            return;
+        }
+        if (running) {
+            LockSupport.park(this);
+        } else {
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        parked = false;
+    }
+
+    private boolean pollOverflow() {
+        var pending = overflow.poll();
+        if (pending == null) {
+            return false;
+        }
+        deliver(pending.log(), pending.dsts(), pending.buf(), pending.thrown(),
+                pending.returns());
+        return true;
+    }
+
+    private void deliver(Log log, LogDst[] dsts, OptBuf buf, Throwable thrown,
+                         Queue<OptBuf> returns) {
+        try {
+            switch (flushMode) {
+                case STRING -> {
+                    var str = buf.getAndClear();
+                    for (LogDst dst : dsts) {
+                        try {
+                            log.toDst(dst, str, thrown);
+                        } catch (RuntimeException e) {
+                            fail(dst, e);
+                        }
+                    }
+                }
+                case REUSABLE_MESSAGE, COALESCE_BY_DST -> {
+                    var msg = message.wrap(buf);
+                    for (LogDst dst : dsts) {
+                        try {
+                            log.toDst(dst, buf, msg, thrown);
+                        } catch (RuntimeException e) {
+                            fail(dst, e);
+                        }
+                    }
+                }
+            }
+        } finally {
+            buf.clear();
+            returns.offer(buf);
+        }
+    }
+
+    private void fail(LogDst dst, RuntimeException e) {
+        failed.increment();
+        StatusLogger.getLogger().error("AsyncFlusher failed to deliver to {}", dst, e);
+    }
+}
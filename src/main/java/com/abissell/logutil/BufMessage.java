@@ -0,0 +1,83 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ReusableMessage;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
+/**
+ * A reusable log4j {@link Message} which renders the live contents of an
+ * {@link OptBuf} rather than a {@code String} copy of it. Layouts and
+ * garbage-free event factories copy the text straight out of the builder via
+ * {@link #formatTo(StringBuilder)}, and asynchronous loggers take a
+ * {@link #memento()} or copy it into their ring buffer before the logger call
+ * returns, so the builder may be cleared once it does.
+ */
+final class BufMessage implements ReusableMessage, StringBuilderFormattable {
+    private static final long serialVersionUID = 1L;
+    private static final Object[] NO_PARAMS = new Object[0];
+
+    private transient StringBuilderFormattable source = OptBuf.NOOP;
+
+    BufMessage wrap(StringBuilderFormattable source) {
+        this.source = source;
+        return this;
+    }
+
+    @Override
+    public void formatTo(StringBuilder buffer) {
+        source.formatTo(buffer);
+    }
+
+    @Override
+    public String getFormattedMessage() {
+        var text = new StringBuilder();
+        source.formatTo(text);
+        return text.toString();
+    }
+
+    @Override
+    public String getFormat() {
+        return getFormattedMessage();
+    }
+
+    @Override
+    public Object[] getParameters() {
+        return NO_PARAMS;
+    }
+
+    @Override
+    public Throwable getThrowable() {
+        return null;
+    }
+
+    @Override
+    public Object[] swapParameters(Object[] emptyReplacement) {
+        return emptyReplacement;
+    }
+
+    @Override
+    public short getParameterCount() {
+        return 0;
+    }
+
+    @Override
+    public Message memento() {
+        return new SimpleMessage(getFormattedMessage());
+    }
+}
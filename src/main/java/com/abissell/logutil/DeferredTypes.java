@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.Period;
+import java.time.ZonedDateTime;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+
+/**
+ * The types whose instances an {@link OptBuf.Fields} buffer may hold on to
+ * and format at flush rather than when added. A deferred object's
+ * {@code toString()} may run on another thread, long after the call which
+ * added it, so only immutable types are safe to defer as they are. Instances
+ * of a mutable type can be deferred by registering a snapshot function,
+ * which copies them on the adding thread; this pays off when a copy is
+ * cheaper than formatting.
+ *
+ * <p> Strings, boxed primitives, {@code BigInteger}, {@code BigDecimal},
+ * {@code UUID}, the common {@code java.time} value types and all enums are
+ * deferrable by default. Objects of any other type are formatted
+ * immediately. Registrations are global and last for the life of the JVM.
+ */
+public final class DeferredTypes {
+    private static final ConcurrentHashMap<Class<?>, UnaryOperator<Object>> SNAPSHOTS =
+            new ConcurrentHashMap<>();
+
+    static {
+        for (Class<?> type : new Class<?>[] {
+                String.class, Boolean.class, Character.class, Byte.class, Short.class,
+                Integer.class, Long.class, Float.class, Double.class,
+                BigInteger.class, BigDecimal.class, UUID.class,
+                Instant.class, Duration.class, Period.class, LocalDate.class, LocalTime.class,
+                LocalDateTime.class, OffsetDateTime.class, ZonedDateTime.class }) {
+            register(type);
+        }
+    }
+
+    private DeferredTypes() {}
+
+    /**
+     * Marks instances of exactly {@code type}, which must be immutable, as
+     * safe to format at flush.
+     */
+    public static void register(Class<?> type) {
+        SNAPSHOTS.put(type, UnaryOperator.identity());
+    }
+
+    /**
+     * Marks instances of exactly {@code type} as deferrable once copied by
+     * {@code snapshot}, which is called on the adding thread.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> void register(Class<T> type, UnaryOperator<T> snapshot) {
+        SNAPSHOTS.put(type, (UnaryOperator<Object>) snapshot);
+    }
+
+    /**
+     * Undoes {@link #register} for {@code type}, so that its instances are
+     * formatted immediately again. For tests.
+     */
+    static void unregister(Class<?> type) {
+        SNAPSHOTS.remove(type);
+    }
+
+    /**
+     * The object to hold on to in place of {@code obj}, or {@code null} if
+     * it must be formatted now.
+     */
+    static Object capture(Object obj) {
+        var snapshot = SNAPSHOTS.get(obj.getClass());
+        if (snapshot != null) {
+            return snapshot.apply(obj);
+        }
+        return obj instanceof Enum<?> ? obj : null;
+    }
+}
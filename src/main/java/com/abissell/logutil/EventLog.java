@@ -15,15 +15,74 @@
  */
 package com.abissell.logutil;
 
+/**
+ * The {@link LogBuf} for one event, flushed when the event is closed. An
+ * {@code EventLog} may be passed down explicitly, or bound for the extent of
+ * a task by a {@link LogBufPool} and looked up anywhere within it through
+ * {@link #current(Class)}.
+ *
+ * <p> Subtasks forked within the task, e.g. by a
+ * {@code StructuredTaskScope}, inherit the binding but must not write to the
+ * task's {@code LogBuf}, which is confined to the task's thread. They should
+ * log through {@link #fork(long)}, called on the task's {@code EventLog}
+ * with an order that places their output; {@link #current(Class)} called on
+ * a subtask's own thread forks one with the highest order as a fallback.
+ */
 public record EventLog<S extends Enum<S> & LogDstSet<?>>(
         LogBuf<S> buf
 ) implements AutoCloseable {
+    /*
+     * An EventLog bound by a LogBufPool, with the thread it was bound on.
+     */
+    record Bound(EventLog<?> eventLog, Thread owner) {}
+
+    static final ScopedValue<Bound> CURRENT = ScopedValue.newInstance();
+    private static final EventLog<?> NOOP = new EventLog<>(null);
+
+    /**
+     * The {@code EventLog} bound to the current scope by a
+     * {@link LogBufPool} if its {@code LogBuf} is for {@code setClass}'s
+     * sets, and otherwise one which hands out only {@link OptBuf#NOOP}. On
+     * any thread but the one which bound it, such as a subtask's which
+     * inherited the binding, each call returns a new
+     * {@code fork(Long.MAX_VALUE)} of it instead.
+     */
+    @SuppressWarnings("unchecked")
+    public static <S extends Enum<S> & LogDstSet<?>> EventLog<S> current(Class<S> setClass) {
+        var bound = CURRENT.orElse(null);
+        if (bound == null || bound.eventLog().buf().setClass() != setClass) {
+            return (EventLog<S>) NOOP;
+        }
+        var current = (EventLog<S>) bound.eventLog();
+        return bound.owner() == Thread.currentThread() ? current : current.fork(Long.MAX_VALUE);
+    }
+
     public OptBuf to(S dstSet, Log log) {
-        return buf.to(dstSet, log);
+        return buf != null ? buf.to(dstSet, log) : OptBuf.NOOP;
+    }
+
+    public OptBuf to(S dstSet, Log log, Throwable thrown) {
+        return buf != null ? buf.to(dstSet, log, thrown) : OptBuf.NOOP;
+    }
+
+    public LogTemplate.Args to(S dstSet, Log log, LogTemplate template) {
+        return buf != null ? buf.to(dstSet, log, template) : LogTemplate.Args.NOOP;
+    }
+
+    /**
+     * An {@code EventLog} over a segment of this one's {@code LogBuf}, for a
+     * subtask of this event to log to from another thread; see
+     * {@link LogBuf#fork(long)}. Closing it does nothing; its output is
+     * logged as part of this event when this one is closed.
+     */
+    public EventLog<S> fork(long order) {
+        return buf != null ? new EventLog<>(buf.fork(order)) : this;
     }
 
     @Override
     public void close() {
-        buf.flush();
+        if (buf != null) {
+            buf.flush();
+        }
     }
 }
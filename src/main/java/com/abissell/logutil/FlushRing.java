@@ -0,0 +1,125 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, lock-free multi-producer single-consumer ring of filled buffers
+ * awaiting delivery by an {@link AsyncFlusher}. Slots are preallocated and
+ * sequenced after Vyukov's bounded queue, so publishing a buffer allocates
+ * nothing.
+ */
+final class FlushRing {
+    private static final VarHandle SEQ = MethodHandles.arrayElementVarHandle(long[].class);
+
+    interface Sink {
+        void accept(Log log, LogDst[] dsts, OptBuf buf, Throwable thrown, Queue<OptBuf> returns);
+    }
+
+    private final long[] seqs;
+    private final Log[] logs;
+    private final LogDst[][] dsts;
+    private final OptBuf[] bufs;
+    private final Throwable[] thrown;
+    private final Object[] returns;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    FlushRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.seqs = new long[size];
+        this.logs = new Log[size];
+        this.dsts = new LogDst[size][];
+        this.bufs = new OptBuf[size];
+        this.thrown = new Throwable[size];
+        this.returns = new Object[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            seqs[i] = i;
+        }
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    int size() {
+        return (int) Math.max(0L, tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    boolean offer(Log log, LogDst[] dsts, OptBuf buf, Throwable thrown,
+                  Queue<OptBuf> returns) {
+        long t = tail.get();
+        for (;;) {
+            int i = (int) t & mask;
+            long dif = (long) SEQ.getAcquire(seqs, i) - t;
+            if (dif == 0) {
+                if (tail.compareAndSet(t, t + 1)) {
+                    break;
+                }
+                t = tail.get();
+            } else if (dif < 0) {
+                return false;
+            } else {
+                t = tail.get();
+            }
+        }
+        int i = (int) t & mask;
+        this.logs[i] = log;
+        this.dsts[i] = dsts;
+        this.bufs[i] = buf;
+        this.thrown[i] = thrown;
+        this.returns[i] = returns;
+        SEQ.setRelease(seqs, i, t + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest published buffer, if any, and hands it to
+     * {@code sink}. Must only be called from the single consuming thread.
+     */
+    boolean poll(Sink sink) {
+        long h = head.get();
+        int i = (int) h & mask;
+        if ((long) SEQ.getAcquire(seqs, i) != h + 1) {
+            return false;
+        }
+        var log = logs[i];
+        var dstArr = dsts[i];
+        var buf = bufs[i];
+        var t = thrown[i];
+        @SuppressWarnings("unchecked")
+        var ret = (Queue<OptBuf>) returns[i];
+        logs[i] = null;
+        dsts[i] = null;
+        bufs[i] = null;
+        thrown[i] = null;
+        returns[i] = null;
+        head.lazySet(h + 1);
+        SEQ.setRelease(seqs, i, h + mask + 1);
+        sink.accept(log, dstArr, buf, t, ret);
+        return true;
+    }
+}
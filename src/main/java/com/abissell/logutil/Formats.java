@@ -0,0 +1,146 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+/**
+ * Allocation-free implementations of {@link OptBuf}'s numeric formatting
+ * methods, written in terms of its {@code char}, {@code long} and
+ * {@code String} appends so that they serve every buffering variant.
+ */
+final class Formats {
+    private static final long[] POW10 = new long[19];
+    private static final String[] BYTE_UNITS =
+            { " B", " KiB", " MiB", " GiB", " TiB", " PiB", " EiB" };
+    private static final String MIN_LONG_DIGITS = "9223372036854775808";
+
+    static {
+        POW10[0] = 1L;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10L;
+        }
+    }
+
+    private Formats() {}
+
+    static OptBuf fixed(OptBuf buf, double value, int decimals) {
+        checkScale(decimals);
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return buf.add(value);
+        }
+        double scaled = Math.abs(value) * POW10[decimals];
+        if (scaled >= 0x1p63) {
+            return buf.add(value);
+        }
+        long unscaled = Math.round(scaled);
+        if (value < 0 && unscaled != 0) {
+            buf.add('-');
+        }
+        return scaled(buf, unscaled, decimals);
+    }
+
+    static OptBuf scaled(OptBuf buf, long unscaled, int scale) {
+        checkScale(scale);
+        if (scale == 0) {
+            return buf.add(unscaled);
+        }
+        long intPart = unscaled / POW10[scale];
+        long frac = Math.abs(unscaled % POW10[scale]);
+        if (unscaled < 0 && intPart == 0) {
+            buf.add('-');
+        }
+        buf.add(intPart).add('.');
+        return zeroPadded(buf, frac, scale);
+    }
+
+    static OptBuf padded(OptBuf buf, long value, int width) {
+        if (value < 0) {
+            buf.add('-');
+            if (value == Long.MIN_VALUE) {
+                zeros(buf, width - MIN_LONG_DIGITS.length());
+                return buf.add(MIN_LONG_DIGITS);
+            }
+            value = -value;
+        }
+        return zeroPadded(buf, value, width);
+    }
+
+    static OptBuf hex(OptBuf buf, long value, int minDigits) {
+        int significant = Math.max(1, (67 - Long.numberOfLeadingZeros(value)) >>> 2);
+        int digits = Math.max(minDigits, significant);
+        zeros(buf, digits - 16);
+        for (int shift = (Math.min(digits, 16) - 1) << 2; shift >= 0; shift -= 4) {
+            buf.add(Character.forDigit((int) (value >>> shift) & 0xF, 16));
+        }
+        return buf;
+    }
+
+    static OptBuf binary(OptBuf buf, long value, int minDigits) {
+        int digits = Math.max(minDigits, Math.max(1, 64 - Long.numberOfLeadingZeros(value)));
+        zeros(buf, digits - 64);
+        for (int shift = Math.min(digits, 64) - 1; shift >= 0; shift--) {
+            buf.add((value >>> shift & 1L) == 0L ? '0' : '1');
+        }
+        return buf;
+    }
+
+    static OptBuf bytes(OptBuf buf, long bytes) {
+        if (bytes < 0) {
+            buf.add('-');
+            bytes = bytes == Long.MIN_VALUE ? Long.MAX_VALUE : -bytes;
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        if (unit <= 0) {
+            return buf.add(bytes).add(BYTE_UNITS[0]);
+        }
+        int shift = unit * 10;
+        long whole = bytes >>> shift;
+        long tenths = Math.round((double) (bytes & ((1L << shift) - 1)) * 10 / (1L << shift));
+        if (tenths == 10) {
+            whole++;
+            tenths = 0;
+        }
+        if (whole == 1024 && unit < BYTE_UNITS.length - 1) {
+            whole = 1;
+            unit++;
+        }
+        return buf.add(whole).add('.').add(tenths).add(BYTE_UNITS[unit]);
+    }
+
+    static OptBuf elapsed(OptBuf buf, long nanos) {
+        return buf.add(nanos < 0 ? '-' : '+').add(Math.abs(nanos / 1000)).add("\u00b5s");
+    }
+
+    private static OptBuf zeroPadded(OptBuf buf, long nonNegative, int width) {
+        int digits = 1;
+        while (digits < 19 && nonNegative >= POW10[digits]) {
+            digits++;
+        }
+        zeros(buf, width - digits);
+        return buf.add(nonNegative);
+    }
+
+    private static void zeros(OptBuf buf, int count) {
+        for (int i = 0; i < count; i++) {
+            buf.add('0');
+        }
+    }
+
+    static void checkScale(int scale) {
+        if (scale < 0 || scale >= POW10.length) {
+            throw new IllegalArgumentException("scale must be in [0, 18]: " + scale);
+        }
+    }
+}
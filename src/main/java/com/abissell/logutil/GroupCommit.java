@@ -0,0 +1,268 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Collects the flushed buffers of many {@link LogBuf}s, and so of many
+ * {@link EventLog}s on any number of threads, into one batch of text per
+ * {@link LogDst} and {@link Log} level, and logs each batch as a single
+ * message once it is due. This trades a little latency for making one
+ * appender call, and typically one write, per batch rather than per event.
+ * Create a {@code LogBuf} with {@link LogBuf#create(Enum[], GroupCommit)} to
+ * flush into one.
+ *
+ * <p> Events in a batch are separated by newlines. A batch is logged by the
+ * thread whose flush takes it to {@link Limits#maxLength()} or
+ * {@link Limits#maxEvents()}, or else by a background committer thread once
+ * {@link Limits#maxDelay()} has passed since its first event. Batches are
+ * logged outside the lock appending threads take, so a slow appender only
+ * holds up threads committing to the same destination and level, never
+ * threads appending to its next batch. Closing a {@code GroupCommit}
+ * logs every pending batch, and a shutdown hook closes it at exit if it is
+ * still open. log4j's own shutdown hook runs concurrently with it, so
+ * disable that and stop log4j afterwards where batches must not be lost.
+ *
+ * <p> An event with a {@code Throwable} attached cannot share a message with
+ * others, so it first commits its destination's pending batch and is then
+ * logged alone, keeping the destination's events in order.
+ */
+public final class GroupCommit implements AutoCloseable {
+    /**
+     * When a batch is logged: as soon as it holds {@code maxLength} chars or
+     * {@code maxEvents} events, or {@code maxDelay} after its first event,
+     * whichever comes first.
+     */
+    public record Limits(int maxLength, int maxEvents, Duration maxDelay) {
+        public Limits {
+            if (maxLength < 1 || maxEvents < 1) {
+                throw new IllegalArgumentException("maxLength and maxEvents must be positive");
+            }
+            if (maxDelay.isNegative() || maxDelay.isZero()) {
+                throw new IllegalArgumentException("maxDelay must be positive");
+            }
+        }
+    }
+
+    private static final Log[] LOGS = Log.values();
+
+    /*
+     * A batch's text, and once taken to be logged, its place in the batch's
+     * commit order.
+     */
+    private static final class Commit {
+        final OptBuf.Buf text = new OptBuf.Buf(new StringBuilder());
+        long ticket;
+    }
+
+    /*
+     * One destination and level's pending text, guarded by lock. Committing
+     * swaps the text out for a spare under lock and gives it the next
+     * ticket, then logs it holding only commitLock once every earlier ticket
+     * has been logged. A destination so sees batches in order, while threads
+     * appending to the next batch never wait on its logger. The message and
+     * served are guarded by commitLock.
+     */
+    private static final class Batch {
+        final ReentrantLock lock = new ReentrantLock();
+        final ReentrantLock commitLock = new ReentrantLock();
+        final Condition served = commitLock.newCondition();
+        final Queue<Commit> spares = new ConcurrentLinkedQueue<>();
+        final BufMessage message = new BufMessage();
+        final LogDst dst;
+        final Log log;
+        Commit pending = new Commit();
+        volatile int events;
+        long deadline;
+        long issued;
+        long next;
+
+        Batch(LogDst dst, Log log) {
+            this.dst = dst;
+            this.log = log;
+        }
+
+        /*
+         * Called holding lock. The caller must release it before passing the
+         * returned text, which may be empty, to log().
+         */
+        Commit take() {
+            var taken = pending;
+            var spare = spares.poll();
+            pending = spare != null ? spare : new Commit();
+            taken.ticket = issued++;
+            events = 0;
+            return taken;
+        }
+
+        /*
+         * Waits for the commits of every earlier ticket, then logs text taken
+         * by take(), then thrown's event if buf is non-null.
+         */
+        void log(Commit taken, OptBuf buf, Throwable thrown) {
+            commitLock.lock();
+            try {
+                while (next != taken.ticket) {
+                    served.awaitUninterruptibly();
+                }
+                var text = taken.text;
+                if (text.length() > 0) {
+                    log.toDst(dst, text, message.wrap(text));
+                }
+                if (buf != null) {
+                    log.toDst(dst, buf, message.wrap(buf), thrown);
+                }
+            } finally {
+                next++;
+                served.signalAll();
+                commitLock.unlock();
+                taken.text.clear();
+                spares.offer(taken);
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<LogDst, Batch[]> batches = new ConcurrentHashMap<>();
+    private final Limits limits;
+    private final long maxDelayNanos;
+    private volatile boolean running = true;
+    private Thread committer;
+    private Thread shutdownHook;
+
+    private GroupCommit(Limits limits) {
+        this.limits = limits;
+        this.maxDelayNanos = limits.maxDelay().toNanos();
+    }
+
+    public static GroupCommit start(ThreadFactory threadFactory, Limits limits) {
+        var groupCommit = new GroupCommit(limits);
+        groupCommit.committer = threadFactory.newThread(groupCommit::commitDue);
+        groupCommit.committer.start();
+        groupCommit.shutdownHook = Thread.ofPlatform().unstarted(groupCommit::close);
+        Runtime.getRuntime().addShutdownHook(groupCommit.shutdownHook);
+        return groupCommit;
+    }
+
+    /**
+     * Stops the committer thread and logs every pending batch.
+     */
+    @Override
+    public void close() {
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down, and the hook will run
+            }
+        }
+        running = false;
+        LockSupport.unpark(committer);
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commitAll(Long.MAX_VALUE);
+    }
+
+    /**
+     * Adds {@code buf}'s text to the batch of each of {@code dsts} at
+     * {@code log}, logging any batch which thereby becomes due, or if
+     * {@code thrown} is non-null logs it alone after the pending batch. Leaves
+     * {@code buf} as it was.
+     */
+    void append(Log log, LogDst[] dsts, OptBuf buf, Throwable thrown) {
+        for (LogDst dst : dsts) {
+            var batch = batches.computeIfAbsent(dst, GroupCommit::newBatches)[log.ordinal()];
+            Commit taken = null;
+            batch.lock.lock();
+            try {
+                if (thrown != null) {
+                    taken = batch.take();
+                } else {
+                    var text = batch.pending.text;
+                    if (batch.events == 0) {
+                        batch.deadline = System.nanoTime() + maxDelayNanos;
+                    } else {
+                        text.add('\n');
+                    }
+                    buf.formatTo(text.buf());
+                    if (++batch.events >= limits.maxEvents()
+                            || text.length() >= limits.maxLength()
+                            || !running) {
+                        taken = batch.take();
+                    }
+                }
+            } finally {
+                batch.lock.unlock();
+            }
+            if (taken != null) {
+                batch.log(taken, thrown != null ? buf : null, thrown);
+            }
+        }
+    }
+
+    private static Batch[] newBatches(LogDst dst) {
+        var levels = new Batch[LOGS.length];
+        for (Log log : LOGS) {
+            levels[log.ordinal()] = new Batch(dst, log);
+        }
+        return levels;
+    }
+
+    private void commitDue() {
+        long tick = Math.max(maxDelayNanos / 4, 1_000_000L);
+        while (running) {
+            LockSupport.parkNanos(tick);
+            commitAll(System.nanoTime());
+        }
+    }
+
+    /*
+     * Logs every non-empty batch whose deadline is not after now; deadlines
+     * are compared by difference, as nanoTime() may wrap. Long.MAX_VALUE
+     * commits them all.
+     */
+    private void commitAll(long now) {
+        for (Batch[] levels : batches.values()) {
+            for (Batch batch : levels) {
+                if (batch.events == 0) {
+                    continue;
+                }
+                Commit taken = null;
+                batch.lock.lock();
+                try {
+                    if (now == Long.MAX_VALUE || now - batch.deadline >= 0) {
+                        taken = batch.take();
+                    }
+                } finally {
+                    batch.lock.unlock();
+                }
+                if (taken != null) {
+                    batch.log(taken, null, null);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An append-only log of flushed buffers in a series of pre-allocated,
+ * memory-mapped segment files, for destinations whose volume makes log4j's
+ * filter, layout and appender stack too costly. A {@link LogDst} whose
+ * {@link LogDst#journal()} returns a {@code Journal} has its output appended
+ * here instead of to its logger; its logger's level still gates it. A
+ * {@link JournalReader} tails or replays the segments, e.g. into ordinary
+ * log4j loggers.
+ *
+ * <p> Appending reserves space by atomically advancing the segment's tail,
+ * copies the record in with a single bounded copy (UTF-8 encoding on the fly
+ * for on-heap buffers) and then commits it by publishing its size. Appends
+ * from several threads proceed concurrently; only rolling to the next segment
+ * takes a lock. A record too large for a segment is truncated to fit. A
+ * segment is unmapped as soon as the last append into it completes after
+ * the journal has rolled past it.
+ *
+ * <p> Segments are named {@code <name>-<index>.journal}. Each begins with a
+ * {@value #HEADER}-byte header, which records the writing process's pid so
+ * that a {@link JournalReader} can tell whether a stalled record's writer is
+ * still alive, and holds records laid out as:
+ * <pre>
+ *   int  size     record size including padding, 0 until committed, -1 at
+ *                 the end of a segment
+ *   int  length   UTF-8 payload length in bytes
+ *   long millis   epoch millis of the append
+ *   int  level    {@link Log} ordinal
+ *   byte[length]  payload, padded to a multiple of 8 bytes
+ * </pre>
+ * Mapped memory reaches the file as the operating system writes it back, so
+ * records survive a crash of the JVM but not of the machine unless
+ * {@link #force()} is called.
+ */
+public final class Journal implements AutoCloseable {
+    static final long MAGIC = 0x4C4F47554A524E4CL;
+    static final int HEADER = 64;
+    static final int TAIL = 8;
+    static final int INDEX = 16;
+    static final int CAPACITY = 20;
+    static final int WRITER_PID = 24;
+    static final int RECORD_HEADER = 20;
+    static final int END = -1;
+    static final String SUFFIX = ".journal";
+
+    static final VarHandle LONGS =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    static final VarHandle INTS =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    private static final int MIN_SEGMENT = 4096;
+
+    private final ThreadLocal<StringBuilder> scratch = ThreadLocal.withInitial(StringBuilder::new);
+    private final Path dir;
+    private final String name;
+    private final int segmentBytes;
+    private final int retainSegments;
+    private final int maxPayload;
+    private volatile Mapping current;
+    private int index;
+
+    private Journal(Path dir, String name, int segmentBytes, int retainSegments, int index) {
+        this.dir = dir;
+        this.name = name;
+        this.segmentBytes = segmentBytes;
+        this.retainSegments = retainSegments;
+        this.maxPayload = segmentBytes - HEADER - RECORD_HEADER - 7;
+        this.index = index;
+        this.current = map(index);
+    }
+
+    /**
+     * Opens a journal in {@code dir}, starting a new segment after any left
+     * by an earlier run. Segments are {@code segmentBytes} long, rounded down
+     * to a multiple of 8, and at most {@code retainSegments} of them are kept,
+     * including those left by earlier runs, the oldest being deleted here and
+     * as new ones are started.
+     */
+    public static Journal open(Path dir, String name, int segmentBytes, int retainSegments) {
+        if (segmentBytes < MIN_SEGMENT) {
+            throw new IllegalArgumentException("segmentBytes must be at least " + MIN_SEGMENT);
+        }
+        if (retainSegments < 1) {
+            throw new IllegalArgumentException("retainSegments must be positive");
+        }
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int last = lastSegment(dir, name);
+        int first = firstSegment(dir, name);
+        try {
+            for (int i = first; i >= 0 && i <= last + 1 - retainSegments; i++) {
+                Files.deleteIfExists(segment(dir, name, i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Journal(dir, name, segmentBytes & ~7, retainSegments, last + 1);
+    }
+
+    /**
+     * Appends {@code buf}'s contents as one record. An {@link OptBuf.Direct}
+     * is copied as is; other buffers are encoded as UTF-8 on the way in.
+     */
+    public void append(Log level, OptBuf buf) {
+        switch (buf) {
+            case OptBuf.Direct d -> write(level, d, null, Math.min(d.length(), maxPayload));
+            case OptBuf.Buf b -> append(level, b.buf());
+            default -> {
+                var sb = scratch.get();
+                sb.setLength(0);
+                buf.formatTo(sb);
+                append(level, sb);
+            }
+        }
+    }
+
+    public void append(Log level, CharSequence msg) {
+        write(level, null, msg, utf8Length(msg, maxPayload));
+    }
+
+    /**
+     * Forces the current segment's contents to storage.
+     */
+    public void force() {
+        var mapping = current;
+        if (mapping.acquire()) {
+            try {
+                mapping.segment.force();
+            } finally {
+                mapping.release();
+            }
+        }
+    }
+
+    /**
+     * Forces and unmaps the current segment. Appends after closing throw
+     * {@link IllegalStateException}.
+     */
+    @Override
+    public synchronized void close() {
+        var mapping = current;
+        if (!mapping.retired()) {
+            force();
+            mapping.retire();
+        }
+    }
+
+    private void write(Log level, OptBuf.Direct direct, CharSequence chars, int len) {
+        int size = (RECORD_HEADER + len + 7) & ~7;
+        while (true) {
+            var mapping = current;
+            if (!mapping.acquire()) {
+                if (mapping == current) {
+                    throw new IllegalStateException("Journal " + name + " is closed");
+                }
+                continue;
+            }
+            try {
+                var seg = mapping.buf;
+                long at = (long) LONGS.getAndAdd(seg, TAIL, (long) size);
+                if (at + size <= segmentBytes) {
+                    int pos = (int) at;
+                    seg.putInt(pos + 4, len);
+                    seg.putLong(pos + 8, System.currentTimeMillis());
+                    seg.putInt(pos + 16, level.ordinal());
+                    if (direct != null) {
+                        direct.copyTo(seg, pos + RECORD_HEADER, len);
+                    } else {
+                        encode(chars, seg, pos + RECORD_HEADER, len);
+                    }
+                    INTS.setRelease(seg, pos, size);
+                    return;
+                }
+                if (at < segmentBytes) {
+                    INTS.setRelease(seg, (int) at, END);
+                }
+                roll(mapping);
+            } finally {
+                mapping.release();
+            }
+        }
+    }
+
+    private synchronized void roll(Mapping full) {
+        if (current != full) {
+            return;
+        }
+        current = map(++index);
+        full.retire();
+        if (index >= retainSegments) {
+            try {
+                Files.deleteIfExists(segment(dir, name, index - retainSegments));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private Mapping map(int index) {
+        var arena = Arena.ofShared();
+        try (var channel = FileChannel.open(segment(dir, name, index),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var mapping = new Mapping(arena,
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes, arena));
+            var seg = mapping.buf;
+            seg.putLong(0, MAGIC);
+            seg.putInt(INDEX, index);
+            seg.putInt(CAPACITY, segmentBytes);
+            seg.putLong(WRITER_PID, ProcessHandle.current().pid());
+            LONGS.setRelease(seg, TAIL, (long) HEADER);
+            return mapping;
+        } catch (IOException e) {
+            arena.close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * A mapped segment and a count of the appends using it. Once the journal
+     * has rolled past it, it is retired and the last append to leave closes
+     * its arena, unmapping it; appends which arrive after that retry against
+     * the current segment.
+     */
+    private static final class Mapping {
+        private static final int RETIRED = 1 << 30;
+        private static final int UNMAPPED = 1 << 29;
+
+        final Arena arena;
+        final MemorySegment segment;
+        final ByteBuffer buf;
+        private final AtomicInteger users = new AtomicInteger();
+
+        Mapping(Arena arena, MemorySegment segment) {
+            this.arena = arena;
+            this.segment = segment;
+            this.buf = segment.asByteBuffer().order(ByteOrder.nativeOrder());
+        }
+
+        boolean acquire() {
+            if (users.getAndIncrement() >= RETIRED) {
+                release();
+                return false;
+            }
+            return true;
+        }
+
+        void release() {
+            if (users.decrementAndGet() == RETIRED) {
+                unmap();
+            }
+        }
+
+        boolean retired() {
+            return users.get() >= RETIRED;
+        }
+
+        void retire() {
+            if (users.getAndAdd(RETIRED) == 0) {
+                unmap();
+            }
+        }
+
+        private void unmap() {
+            if (users.compareAndSet(RETIRED, RETIRED | UNMAPPED)) {
+                arena.close();
+            }
+        }
+    }
+
+    static Path segment(Path dir, String name, int index) {
+        return dir.resolve(name + "-" + String.format("%06d", index) + SUFFIX);
+    }
+
+    /**
+     * The index of the first or last of {@code name}'s segments in
+     * {@code dir}, or -1 if there are none.
+     */
+    static int firstSegment(Path dir, String name) {
+        return scan(dir, name, true);
+    }
+
+    static int lastSegment(Path dir, String name) {
+        return scan(dir, name, false);
+    }
+
+    private static int scan(Path dir, String name, boolean first) {
+        int found = -1;
+        String prefix = name + "-";
+        try (var files = Files.newDirectoryStream(dir, prefix + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                String digits = fileName.substring(prefix.length(),
+                        fileName.length() - SUFFIX.length());
+                int index;
+                try {
+                    index = Integer.parseInt(digits);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (found < 0 || (first ? index < found : index > found)) {
+                    found = index;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return found;
+    }
+
+    /*
+     * The number of UTF-8 bytes in the longest prefix of chars which encodes
+     * to at most max bytes. An unpaired surrogate encodes as '?', as in
+     * OptBuf.Direct.
+     */
+    private static int utf8Length(CharSequence chars, int max) {
+        int len = 0;
+        for (int i = 0, n = chars.length(); i < n; i++) {
+            char c = chars.charAt(i);
+            int w;
+            if (c < 0x80) {
+                w = 1;
+            } else if (c < 0x800) {
+                w = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < n
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                w = 4;
+            } else if (Character.isSurrogate(c)) {
+                w = 1;
+            } else {
+                w = 3;
+            }
+            if (len + w > max) {
+                break;
+            }
+            len += w;
+            if (w == 4) {
+                i++;
+            }
+        }
+        return len;
+    }
+
+    private static void encode(CharSequence chars, ByteBuffer dst, int pos, int len) {
+        int end = pos + len;
+        for (int i = 0; pos < end; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                dst.put(pos++, (byte) c);
+            } else if (c < 0x800) {
+                dst.put(pos++, (byte) (0xC0 | (c >> 6)));
+                dst.put(pos++, (byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < chars.length()
+                    && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, chars.charAt(++i));
+                dst.put(pos++, (byte) (0xF0 | (cp >> 18)));
+                dst.put(pos++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                dst.put(pos++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                dst.put(pos++, (byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                dst.put(pos++, (byte) '?');
+            } else {
+                dst.put(pos++, (byte) (0xE0 | (c >> 12)));
+                dst.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                dst.put(pos++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Reads the records of a {@link Journal}, oldest first, either replaying
+ * what has been written so far or tailing it as it grows. Runnable from the
+ * command line to print a journal to stdout:
+ *
+ * <pre>{@code
+ * java com.abissell.logutil.JournalReader <dir> <name> [--follow]
+ * }</pre>
+ *
+ * <p> A reader may run in a different process from the journal's writer.
+ * Instances are not thread-safe. Each keeps only the segment it is reading
+ * mapped, and {@link #close()} unmaps it.
+ */
+public final class JournalReader implements AutoCloseable {
+    @FunctionalInterface
+    public interface Sink {
+        /**
+         * Receives one record. {@code msg} is reused by the reader and is
+         * only valid until this method returns.
+         */
+        void accept(Log level, long epochMillis, CharSequence msg);
+    }
+
+    private static final Log[] LOGS = Log.values();
+    private static final Duration DEFAULT_STALL_TIMEOUT = Duration.ofSeconds(30);
+
+    private final StringBuilder msg = new StringBuilder();
+    private final Path dir;
+    private final String name;
+    private final long stallTimeoutNanos;
+    private Arena arena;
+    private ByteBuffer seg;
+    private int index;
+    private int pos;
+    private int stalledAt = -1;
+    private long stalledSince;
+
+    private JournalReader(Path dir, String name, int index, Duration stallTimeout) {
+        this.dir = dir;
+        this.name = name;
+        this.index = index;
+        this.pos = Journal.HEADER;
+        this.stallTimeoutNanos = stallTimeout.toNanos();
+    }
+
+    /**
+     * Opens a reader at the start of the oldest of {@code name}'s segments
+     * in {@code dir}, which waits up to 30 seconds for a live writer to
+     * commit a record.
+     */
+    public static JournalReader open(Path dir, String name) {
+        return open(dir, name, DEFAULT_STALL_TIMEOUT);
+    }
+
+    /**
+     * Opens a reader at the start of the oldest of {@code name}'s segments
+     * in {@code dir}, which gives up on a record its writer has reserved but
+     * not committed once {@code stallTimeout} has passed. See
+     * {@link #poll(Sink)}.
+     */
+    public static JournalReader open(Path dir, String name, Duration stallTimeout) {
+        if (stallTimeout.isNegative()) {
+            throw new IllegalArgumentException("stallTimeout must not be negative");
+        }
+        int first = Math.max(Journal.firstSegment(dir, name), 0);
+        return new JournalReader(dir, name, first, stallTimeout);
+    }
+
+    /**
+     * A sink which logs each record at its level to {@code dst}'s logger.
+     */
+    public static Sink to(LogDst dst) {
+        return (level, epochMillis, msg) -> level.toLogger(dst.getLogger(), msg.toString());
+    }
+
+    public static Sink to(PrintStream out) {
+        return (level, epochMillis, msg) ->
+                out.append(Instant.ofEpochMilli(epochMillis).toString())
+                        .append(' ').append(level.name()).append(' ').append(msg).println();
+    }
+
+    /**
+     * Passes every record committed since the last call to {@code sink} and
+     * returns how many there were.
+     *
+     * <p> A record which was reserved but never committed, as when its
+     * writer died mid-append, is skipped once a later segment exists and
+     * either the process which wrote the segment is no longer alive or the
+     * record has stayed uncommitted for the stall timeout since this reader
+     * first saw it. Until then polling stops at it, so a slow but live
+     * writer's records are never lost.
+     */
+    public int poll(Sink sink) {
+        int n = 0;
+        while (true) {
+            if (seg == null && !map()) {
+                return n;
+            }
+            if (pos + Journal.RECORD_HEADER > seg.capacity()) {
+                if (!next()) {
+                    return n;
+                }
+                continue;
+            }
+            int size = (int) Journal.INTS.getAcquire(seg, pos);
+            if (size == Journal.END) {
+                if (!next()) {
+                    return n;
+                }
+                continue;
+            }
+            if (size == 0) {
+                if (pos != stalledAt) {
+                    stalledAt = pos;
+                    stalledSince = System.nanoTime();
+                } else if (abandoned() && next()) {
+                    continue;
+                }
+                return n;
+            }
+            int len = seg.getInt(pos + 4);
+            long millis = seg.getLong(pos + 8);
+            Log level = LOGS[seg.getInt(pos + 16)];
+            int from = pos + Journal.RECORD_HEADER;
+            msg.setLength(0);
+            OptBuf.Direct.decode(seg, from, from + len, msg);
+            pos += size;
+            stalledAt = -1;
+            n++;
+            sink.accept(level, millis, msg);
+        }
+    }
+
+    /**
+     * Unmaps the segment being read. A later {@link #poll(Sink)} maps it
+     * again and carries on from where this reader left off.
+     */
+    @Override
+    public void close() {
+        unmap();
+    }
+
+    private boolean abandoned() {
+        if (System.nanoTime() - stalledSince >= stallTimeoutNanos) {
+            return true;
+        }
+        return !ProcessHandle.of(seg.getLong(Journal.WRITER_PID))
+                .map(ProcessHandle::isAlive)
+                .orElse(false);
+    }
+
+    /*
+     * Moves on to the next segment once it exists, unmapping the current
+     * one. If the writer has since deleted it, map() skips ahead to the
+     * oldest one remaining.
+     */
+    private boolean next() {
+        if (!Files.exists(Journal.segment(dir, name, index + 1))
+                && Journal.lastSegment(dir, name) <= index) {
+            return false;
+        }
+        index++;
+        pos = Journal.HEADER;
+        unmap();
+        return map();
+    }
+
+    private void unmap() {
+        if (arena != null) {
+            seg = null;
+            arena.close();
+            arena = null;
+        }
+        stalledAt = -1;
+    }
+
+    private boolean map() {
+        var file = Journal.segment(dir, name, index);
+        var mapping = Arena.ofShared();
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), mapping)
+                    .asByteBuffer().order(ByteOrder.nativeOrder());
+            if (mapped.capacity() < Journal.HEADER || mapped.getLong(0) == 0L) {
+                mapping.close();
+                return false;
+            }
+            if (mapped.getLong(0) != Journal.MAGIC) {
+                mapping.close();
+                throw new IllegalStateException("Not a journal segment: " + file);
+            }
+            arena = mapping;
+            seg = mapped;
+            return true;
+        } catch (NoSuchFileException e) {
+            mapping.close();
+            int first = Journal.firstSegment(dir, name);
+            if (first > index) {
+                index = first;
+                pos = Journal.HEADER;
+                return map();
+            }
+            return false;
+        } catch (IOException e) {
+            mapping.close();
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: JournalReader <dir> <name> [--follow]");
+            System.exit(2);
+        }
+        var reader = open(Path.of(args[0]), args[1]);
+        boolean follow = args.length > 2 && args[2].equals("--follow");
+        var sink = to(System.out);
+        do {
+            if (reader.poll(sink) == 0 && follow) {
+                Thread.sleep(100);
+            }
+        } while (follow);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configuration;
+
+/**
+ * Caches, for each {@link LogDstSet}, a bitmask of the {@link Log} levels at
+ * which at least one of its destinations' loggers is enabled, as determined
+ * by the loggers' log4j configuration. Bit {@code n} of a mask corresponds to
+ * the level with ordinal {@code n}.
+ *
+ * <p> Masks of enum sets are cached per enum class and recomputed lazily
+ * after {@link Log#levelEpoch()} changes. That happens on every {@link
+ * Log#setLevel}, and when {@link #check}, run at each {@link LogBuf#flush()},
+ * finds that a destination's logger has changed level or, for loggers backed
+ * by log4j-core, that its {@code LoggerContext} has a new {@link
+ * Configuration}, as after {@code Configurator.setLevel} or a
+ * reconfiguration. Each configuration seen is also watched through log4j's
+ * {@code ConfigurationListener}, so that a reconfiguration triggered by its
+ * file changing invalidates the masks as soon as it is noticed.
+ */
+final class LevelMasks {
+    private static final long STALE = -1L;
+    private static final ClassValue<AtomicLongArray> ENUM_MASKS = new ClassValue<>() {
+        @Override
+        protected AtomicLongArray computeValue(Class<?> type) {
+            var entries = new AtomicLongArray(type.getEnumConstants().length);
+            for (int i = 0; i < entries.length(); i++) {
+                entries.set(i, STALE);
+            }
+            return entries;
+        }
+    };
+    // The logger state each enum destination's mask bits were computed from
+    private static final ClassValue<AtomicReferenceArray<Seen>> SEEN = new ClassValue<>() {
+        @Override
+        protected AtomicReferenceArray<Seen> computeValue(Class<?> type) {
+            return new AtomicReferenceArray<>(type.getEnumConstants().length);
+        }
+    };
+    private static final Map<Configuration, Boolean> WATCHED =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private record Seen(Level level, Configuration config) {}
+
+    private LevelMasks() {}
+
+    static int of(LogDstSet<?> set) {
+        if (set instanceof Enum<?> e) {
+            var entries = ENUM_MASKS.get(e.getDeclaringClass());
+            int epoch = Log.levelEpoch();
+            // Epoch in the high half and mask in the low, so one read is never torn
+            long entry = entries.getOpaque(e.ordinal());
+            if (entry != STALE && (int) (entry >>> 32) == epoch) {
+                return (int) entry;
+            }
+            int mask = compute(set);
+            entries.setOpaque(e.ordinal(), ((long) epoch << 32) | (mask & 0xFFFFFFFFL));
+            return mask;
+        }
+        return compute(set);
+    }
+
+    static int compute(LogDstSet<?> set) {
+        int mask = 0;
+        for (LogDst dst : set.set()) {
+            mask |= compute(dst);
+        }
+        return mask;
+    }
+
+    static int compute(LogDst dst) {
+        var logger = dst.getLogger();
+        var config = configuration(logger);
+        if (config != null) {
+            watch(config);
+        }
+        if (dst instanceof Enum<?> e) {
+            SEEN.get(e.getDeclaringClass()).set(e.ordinal(), new Seen(logger.getLevel(), config));
+        }
+        int mask = 0;
+        for (Log log : Log.values()) {
+            if (logger.isEnabled(log.level())) {
+                mask |= log.mask();
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Advances {@link Log#levelEpoch()} if {@code dst}'s logger has changed
+     * level or configuration since its mask bits were last computed. Only
+     * the first caller to notice a change advances it; the rest wait for
+     * the masks to be recomputed. Called by {@link LogBuf} at flush, never
+     * per statement.
+     */
+    static void check(LogDst dst) {
+        if (!(dst instanceof Enum<?> e)) {
+            return;
+        }
+        var seen = SEEN.get(e.getDeclaringClass());
+        var last = seen.get(e.ordinal());
+        if (last == null) {
+            return;
+        }
+        var logger = dst.getLogger();
+        if ((logger.getLevel() != last.level() || configuration(logger) != last.config())
+                && seen.compareAndSet(e.ordinal(), last, null)) {
+            Log.invalidateLevels();
+        }
+    }
+
+    private static Configuration configuration(Logger logger) {
+        return logger instanceof org.apache.logging.log4j.core.Logger coreLogger
+                ? coreLogger.getContext().getConfiguration()
+                : null;
+    }
+
+    private static void watch(Configuration config) {
+        if (WATCHED.putIfAbsent(config, Boolean.TRUE) == null) {
+            config.addListener(reconfigurable -> Log.invalidateLevels());
+        }
+    }
+}
@@ -15,11 +15,16 @@
  */
 package com.abissell.logutil;
 
-import java.lang.StableValue;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
 import java.util.function.Supplier;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.Message;
 
 public enum Log {
     TRACE(Level.TRACE) {
@@ -32,6 +37,16 @@ public enum Log {
         void toLogger(Logger logger, String msg, Throwable throwable) {
             logger.trace(msg, throwable);
         }
+
+        @Override
+        void toLogger(Logger logger, Message msg) {
+            logger.trace(msg);
+        }
+
+        @Override
+        void toLogger(Logger logger, Message msg, Throwable throwable) {
+            logger.trace(msg, throwable);
+        }
     },
     DEBUG(Level.DEBUG) {
         @Override
@@ -43,6 +58,16 @@ public enum Log {
         void toLogger(Logger logger, String msg, Throwable throwable) {
             logger.debug(msg, throwable);
         }
+
+        @Override
+        void toLogger(Logger logger, Message msg) {
+            logger.debug(msg);
+        }
+
+        @Override
+        void toLogger(Logger logger, Message msg, Throwable throwable) {
+            logger.debug(msg, throwable);
+        }
     },
     INFO(Level.INFO) {
         @Override
@@ -54,6 +79,16 @@ public enum Log {
         void toLogger(Logger logger, String msg, Throwable throwable) {
             logger.info(msg, throwable);
         }
+
+        @Override
+        void toLogger(Logger logger, Message msg) {
+            logger.info(msg);
+        }
+
+        @Override
+        void toLogger(Logger logger, Message msg, Throwable throwable) {
+            logger.info(msg, throwable);
+        }
     },
     WARN(Level.WARN) {
         @Override
@@ -65,6 +100,16 @@ public enum Log {
         void toLogger(Logger logger, String msg, Throwable throwable) {
             logger.warn(msg, throwable);
         }
+
+        @Override
+        void toLogger(Logger logger, Message msg) {
+            logger.warn(msg);
+        }
+
+        @Override
+        void toLogger(Logger logger, Message msg, Throwable throwable) {
+            logger.warn(msg, throwable);
+        }
     },
     ERROR(Level.ERROR) {
         @Override
@@ -76,6 +121,16 @@ public enum Log {
         void toLogger(Logger logger, String msg, Throwable throwable) {
             logger.error(msg, throwable);
         }
+
+        @Override
+        void toLogger(Logger logger, Message msg) {
+            logger.error(msg);
+        }
+
+        @Override
+        void toLogger(Logger logger, Message msg, Throwable throwable) {
+            logger.error(msg, throwable);
+        }
     },
     FATAL(Level.FATAL) {
         @Override
@@ -87,40 +142,161 @@ public enum Log {
         void toLogger(Logger logger, String msg, Throwable throwable) {
             logger.fatal(msg, throwable);
         }
+
+        @Override
+        void toLogger(Logger logger, Message msg) {
+            logger.fatal(msg);
+        }
+
+        @Override
+        void toLogger(Logger logger, Message msg, Throwable throwable) {
+            logger.fatal(msg, throwable);
+        }
     };
 
-    private static final StableValue<Level> CONFIGURED_LEVEL = StableValue.of();
-    static final StableValue<Log[]> ENABLED_LEVELS = StableValue.of();
+    /*
+     * The configured level and a counter of level changes are each held as
+     * the constant target of a MutableCallSite. The JIT folds reads through a
+     * call site's dynamic invoker to its current constant, and setLevel()
+     * re-targets the call sites, which deoptimizes any code compiled against
+     * the old values.
+     */
+    private static final MutableCallSite CONFIGURED_LEVEL =
+            new MutableCallSite(unconfigured(int.class));
+    private static final MutableCallSite LEVEL_EPOCH =
+            new MutableCallSite(MethodHandles.constant(int.class, 0));
+    private static final MethodHandle CONFIGURED_INT_LEVEL = CONFIGURED_LEVEL.dynamicInvoker();
+    private static final MethodHandle LEVEL_EPOCH_INT = LEVEL_EPOCH.dynamicInvoker();
 
-    public static void setLevel(Level level) {
-        CONFIGURED_LEVEL.setOrThrow(level);
+    private static int epoch;
 
-        int enabledCount = 0;
-        for (Log logLevel : values()) {
-            if (logLevel.isEnabled()) {
-                enabledCount++;
-            }
+    /**
+     * Sets the level below which log statements are discarded. May be called
+     * again at any time to raise or lower the level; existing {@link LogBuf}s
+     * swap their buffers to match on their next use.
+     */
+    public static synchronized void setLevel(Level level) {
+        CONFIGURED_LEVEL.setTarget(MethodHandles.constant(int.class, level.intLevel()));
+        LEVEL_EPOCH.setTarget(MethodHandles.constant(int.class, ++epoch));
+        MutableCallSite.syncAll(new MutableCallSite[] { CONFIGURED_LEVEL, LEVEL_EPOCH });
+    }
+
+    /**
+     * Marks level-dependent state stale without changing the configured
+     * level, e.g. after log4j has been reconfigured.
+     */
+    static synchronized void invalidateLevels() {
+        LEVEL_EPOCH.setTarget(MethodHandles.constant(int.class, ++epoch));
+        MutableCallSite.syncAll(new MutableCallSite[] { LEVEL_EPOCH });
+    }
+
+    /**
+     * A counter which changes whenever {@link #setLevel} or
+     * {@link #invalidateLevels()} is called, letting holders of
+     * level-dependent state detect that it is stale.
+     */
+    static int levelEpoch() {
+        try {
+            return (int) LEVEL_EPOCH_INT.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
         }
-        Log[] enabledLevels = new Log[enabledCount];
-        int i = 0;
-        for (Log logLevel : values()) {
-            if (logLevel.isEnabled()) {
-                enabledLevels[i++] = logLevel;
-            }
+    }
+
+    private static int configuredIntLevel() {
+        try {
+            return (int) CONFIGURED_INT_LEVEL.invokeExact();
+        } catch (Throwable t) {
+            throw rethrow(t);
         }
-        ENABLED_LEVELS.setOrThrow(enabledLevels);
+    }
+
+    private static MethodHandle unconfigured(Class<?> type) {
+        return MethodHandles.throwException(type, IllegalStateException.class)
+                .bindTo(new IllegalStateException("Log.setLevel has not been called"));
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        return t instanceof RuntimeException e ? e : new IllegalStateException(t);
     }
 
     abstract void toLogger(Logger logger, String msg);
     abstract void toLogger(Logger logger, String msg, Throwable throwable);
+    abstract void toLogger(Logger logger, Message msg);
+    abstract void toLogger(Logger logger, Message msg, Throwable throwable);
 
     public void to(LogDst dst, String msg) {
-        var log = dst.getLogger();
         if (isEnabled()) {
-            toLogger(log, msg);
+            toDst(dst, msg);
+        }
+    }
+
+    /**
+     * Writes {@code msg} to {@code dst}'s journal if it has one, or else to
+     * its logger.
+     */
+    final void toDst(LogDst dst, String msg) {
+        toDst(dst, msg, null);
+    }
+
+    /**
+     * Writes {@code msg} and {@code thrown}, which may be {@code null}, to
+     * {@code dst}'s journal if it has one, or else to its logger. A journal
+     * records the stack trace as text following the message, and only if
+     * {@code dst}'s logger is enabled at this level.
+     */
+    final void toDst(LogDst dst, String msg, Throwable thrown) {
+        var journal = dst.journal();
+        if (journal != null) {
+            if (dst.getLogger().isEnabled(level)) {
+                journal.append(this, thrown == null ? msg : msg + '\n' + stackTrace(thrown));
+            }
+        } else if (thrown == null) {
+            toLogger(dst.getLogger(), msg);
+        } else {
+            toLogger(dst.getLogger(), msg, thrown);
+        }
+    }
+
+    /**
+     * Writes {@code buf} to {@code dst}'s journal if it has one, or else to
+     * its logger as {@code msg}, which must render {@code buf}.
+     */
+    final void toDst(LogDst dst, OptBuf buf, Message msg) {
+        toDst(dst, buf, msg, null);
+    }
+
+    /**
+     * Writes {@code buf} and {@code thrown}, which may be {@code null}, to
+     * {@code dst}'s journal if it has one, or else to its logger as
+     * {@code msg}, which must render {@code buf}. A journal is only written
+     * if {@code dst}'s logger is enabled at this level.
+     */
+    final void toDst(LogDst dst, OptBuf buf, Message msg, Throwable thrown) {
+        var journal = dst.journal();
+        if (journal == null) {
+            if (thrown == null) {
+                toLogger(dst.getLogger(), msg);
+            } else {
+                toLogger(dst.getLogger(), msg, thrown);
+            }
+        } else if (!dst.getLogger().isEnabled(level)) {
+            return;
+        } else if (thrown == null) {
+            journal.append(this, buf);
+        } else {
+            var text = new StringBuilder(buf.length() + 256);
+            buf.formatTo(text);
+            journal.append(this, text.append('\n').append(stackTrace(thrown)));
         }
     }
 
+    private static String stackTrace(Throwable thrown) {
+        var out = new StringWriter();
+        thrown.printStackTrace(new PrintWriter(out));
+        return out.toString();
+    }
+
     public void to(LogDst dst, String prefix, String msg) {
         if (isEnabled()) {
             to(dst, prefix + msg);
@@ -128,7 +304,19 @@ public enum Log {
     }
 
     public final boolean isEnabled() {
-        return level.intLevel() <= CONFIGURED_LEVEL.orElseThrow().intLevel();
+        return level.intLevel() <= configuredIntLevel();
+    }
+
+    /**
+     * Whether this level is enabled both globally and by the log4j
+     * configuration of at least one of {@code dstSet}'s destinations. A
+     * logger level changed outside {@link #setLevel}, as by
+     * {@code Configurator.setLevel}, is seen after the next
+     * {@link LogBuf#flush()} of a buffer writing to that logger, or once
+     * log4j reconfigures.
+     */
+    public final boolean isEnabled(LogDstSet<?> dstSet) {
+        return isEnabled() && (LevelMasks.of(dstSet) & mask()) != 0;
     }
 
     private final Level level;
@@ -137,22 +325,29 @@ public enum Log {
         this.level = level;
     }
 
+    Level level() {
+        return level;
+    }
+
+    int mask() {
+        return 1 << ordinal();
+    }
+
     public void to(LogDstSet<?> dstSet, String prefix, String msg) {
-        if (isEnabled()) {
-            var fullMsg = prefix + msg;
-            to(dstSet, fullMsg);
+        if (admit(dstSet)) {
+            deliver(dstSet, prefix + msg);
         }
     }
 
     public void to(LogDstSet<?> dstSet, String prefix, Object obj) {
-        if (isEnabled()) {
-            to(dstSet, prefix, obj.toString());
+        if (admit(dstSet)) {
+            deliver(dstSet, prefix + obj.toString());
         }
     }
 
     public void to(LogDstSet<?> dstSet, String prefix, Supplier<String> msgSupplier) {
-        if (isEnabled()) {
-            to(dstSet, prefix, msgSupplier.get());
+        if (admit(dstSet)) {
+            deliver(dstSet, prefix + msgSupplier.get());
         }
     }
 
@@ -161,16 +356,31 @@ public enum Log {
     }
 
     public void to(LogDstSet<?> dstSet, Object obj) {
-        if (isEnabled()) {
-            to(dstSet, obj.toString());
+        if (admit(dstSet)) {
+            deliver(dstSet, obj.toString());
         }
     }
 
     public void to(LogDstSet<?> dstSet, String msg) {
-        if (isEnabled()) {
-            for (LogDst dst : dstSet.set()) {
-                to(dst, msg);
-            }
+        if (admit(dstSet)) {
+            deliver(dstSet, msg);
+        }
+    }
+
+    /*
+     * Whether a statement to dstSet at this level is enabled and within its
+     * RateLimit.
+     */
+    private boolean admit(LogDstSet<?> dstSet) {
+        return isEnabled(dstSet) && RateLimiter.acquire(dstSet, this);
+    }
+
+    private void deliver(LogDstSet<?> dstSet, String msg) {
+        if (LogMetrics.isEnabled()) {
+            LogMetrics.recordEvents(dstSet, this, 1, msg.length());
+        }
+        for (LogDst dst : dstSet.set()) {
+            to(dst, msg);
         }
     }
 }
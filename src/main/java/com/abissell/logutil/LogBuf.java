@@ -15,47 +15,1101 @@
  */
 package com.abissell.logutil;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches an {@link OptBuf} per {@link LogDstSet} and {@link Log} level,
+ * handing out {@code OptBuf.NOOP} for disabled combinations, and flushes the
+ * accumulated text of each to its set's destinations.
+ *
+ * <p> The buffers live in a single flat array indexed by
+ * {@code set.ordinal() * levels + log.ordinal()}. Each {@link #to} marks its
+ * slot in a dirty bitmap, so {@link #flush()} visits only the slots handed
+ * out since the previous flush rather than every set and level. It also
+ * checks the slots handed out before earlier flushes for text appended
+ * since, so a buffer held across a flush is still logged at the next.
+ *
+ * <p> A {@code Throwable} attached to a slot by {@link #to(Enum, Log,
+ * Throwable)} is passed to the logger along with the slot's text when it is
+ * flushed, so that layouts render its stack trace as usual. A set may
+ * abbreviate repeats of the same trace with a {@link StackTraceDedup}.
+ *
+ * <p> A {@code LogBuf} is confined to one thread at a time. Subtasks which
+ * log to the same event from other threads, e.g. in a {@code ForkJoinPool}
+ * or a parallel stream, each take a segment of it from {@link #fork(long)}
+ * and append to that without synchronization; the segments are merged in a
+ * deterministic order when the event is flushed.
+ *
+ * <p> If any set has a {@link LogDstSet#clock()}, the event is timed from
+ * the first {@link OptBuf#mark()} in any of its buffers, or its segments',
+ * after a flush, and each mark is rendered at flush as an offset from that
+ * start. The clock is only read by marks.
+ */
+public final class LogBuf<S extends Enum<S> & LogDstSet<?>> {
+    /**
+     * How buffered text is handed to log4j when a {@code LogBuf} is flushed.
+     */
+    public enum FlushMode {
+        /**
+         * Copies each non-empty buffer into a new {@code String} and passes
+         * that to the logger.
+         */
+        STRING,
+        /**
+         * Passes each non-empty buffer's live {@code StringBuilder} to the
+         * logger wrapped in a reusable {@code Message} which implements
+         * {@code StringBuilderFormattable}, and clears the buffer only after
+         * every logger call for it has returned. With a garbage-free log4j
+         * configuration no copy of the buffered text is allocated on flush.
+         */
+        REUSABLE_MESSAGE,
+        /**
+         * Groups the non-empty buffers of every set by physical destination
+         * and level, and makes exactly one logger call per destination and
+         * level, so that sets which share a destination cost it one appender
+         * invocation rather than one per set. Where a destination receives
+         * several buffers at the same level, their text is joined in set
+         * order, separated by newlines, into a scratch buffer; a lone buffer
+         * is passed as is. Each call passes a reusable message as in
+         * {@link #REUSABLE_MESSAGE}. Buffers with a {@code Throwable}
+         * attached are not joined, but logged one by one ahead of the rest.
+         *
+         * <p> Has no effect on a {@code LogBuf} flushed through an
+         * {@link AsyncFlusher}, which hands buffers off per set.
+         */
+        COALESCE_BY_DST
+    }
+
+    /**
+     * Bounds on how large a {@code LogBuf}'s buffers may grow and how much
+     * capacity they keep between events. Lengths are in chars for on-heap
+     * buffers and in bytes for {@link OptBuf.Direct} ones, and are checked
+     * each time a buffer is handed out by {@link #to}, so a single append may
+     * overshoot them.
+     *
+     * @param autoFlushAt    if positive, a buffer at least this long is
+     *                       flushed on its next {@code to}, in the middle of
+     *                       the event, rather than at its end; such flushes
+     *                       are always per set, even when coalescing
+     * @param maxLength      if positive, a buffer at least this long is cut
+     *                       to this length and marked with
+     *                       {@value #TRUNCATED}, and further writes to it are
+     *                       discarded until it is next flushed; a buffer
+     *                       still longer than this at flush, including after
+     *                       merging forked segments, is cut likewise
+     * @param retainCapacity the capacity each buffer may always keep; above
+     *                       it, a buffer is trimmed after a flush to a
+     *                       high-water mark of its recent lengths, which
+     *                       decays by an eighth on every flush
+     */
+    public record Limits(int autoFlushAt, int maxLength, int retainCapacity) {
+        public static final String TRUNCATED = "...[truncated]";
+        public static final Limits NONE = new Limits(0, 0, Integer.MAX_VALUE);
+
+        public Limits {
+            if (autoFlushAt < 0) {
+                throw new IllegalArgumentException(
+                        "autoFlushAt must not be negative: " + autoFlushAt);
+            }
+            if (maxLength < 0) {
+                throw new IllegalArgumentException("maxLength must not be negative: " + maxLength);
+            }
+            if (retainCapacity < 0) {
+                throw new IllegalArgumentException(
+                        "retainCapacity must not be negative: " + retainCapacity);
+            }
+        }
+
+        int checkAt() {
+            int at = Integer.MAX_VALUE;
+            if (autoFlushAt > 0) {
+                at = autoFlushAt;
+            }
+            if (maxLength > 0) {
+                at = Math.min(at, maxLength);
+            }
+            return at;
+        }
+    }
+
+    /**
+     * A flight recorder which holds on to the output of low levels instead
+     * of logging it, so that it can be logged as context when something goes
+     * wrong. On each flush, a non-empty buffer at a level below
+     * {@code below} is swapped into a per-set ring of the last
+     * {@code events} such buffers, displacing the oldest. When a flush finds
+     * output at {@code trigger} or above for the same set, or on
+     * {@link #dump()}, the ring's contents from within the last
+     * {@code window}, oldest first, and then the event's own low-level
+     * buffers are logged at the {@code trigger} level, ahead of the output
+     * which set them off.
+     *
+     * <p> Levels below {@code below} are buffered whether or not they are
+     * enabled, and are never logged other than by a dump. The ring's
+     * buffers are allocated up front and recycled, so recording costs a
+     * buffer swap per level per event.
+     *
+     * @param below   the lowest level logged normally
+     * @param trigger the lowest level whose output dumps its set's ring
+     * @param events  how many buffers each set's ring holds
+     * @param window  how old an entry may be and still be dumped, or
+     *                {@code Duration.ZERO} for no limit
+     */
+    public record Recorder(Log below, Log trigger, int events, Duration window) {
+        public static final Recorder NONE = new Recorder(Log.TRACE, Log.FATAL, 0, Duration.ZERO);
+
+        public Recorder {
+            if (events < 0) {
+                throw new IllegalArgumentException("events must not be negative: " + events);
+            }
+            if (trigger.compareTo(below) < 0) {
+                throw new IllegalArgumentException("trigger must not be below " + below);
+            }
+        }
+
+        boolean records(Log log) {
+            return events > 0 && log.compareTo(below) < 0;
+        }
+    }
+
+    private static final int DIRECT_CAPACITY = 1024;
+    private static final Log[] LOGS = Log.values();
+    private static final int LEVELS = LOGS.length;
+
+    /*
+     * The start of a LogBuf's current event for timing marks: the reading of
+     * the first mark since its last flush in any of its buffers or its
+     * segments'. Marks in segments may race with the event's own, so the
+     * first reading is published by CAS.
+     */
+    static final class EventStart {
+        private static final long NOT_STARTED = Long.MIN_VALUE;
+        private final AtomicLong nanos = new AtomicLong(NOT_STARTED);
+
+        /**
+         * The event's start, which is {@code now} if this is its first mark.
+         */
+        long at(long now) {
+            long start = nanos.get();
+            if (start != NOT_STARTED) {
+                return start;
+            }
+            long witness = nanos.compareAndExchange(NOT_STARTED, now);
+            return witness == NOT_STARTED ? now : witness;
+        }
+
+        void reset() {
+            nanos.set(NOT_STARTED);
+        }
+    }
+
+    private final OptBuf[] bufs;
+    private final Throwable[] thrown;
+    private final long[] dirty;
+    // Slots handed out by to() before the last flush, whose buffers may still be appended to
+    private final long[] held;
+    private final S[] allSets;
+    private final FlushMode flushMode;
+    private final BufMessage message = new BufMessage();
+    private final LogDispatch dispatch;
+    private final LogTemplate.Args args = new LogTemplate.Args();
+    // Null in segments, which share their parent's rate limit decisions
+    private final RateLimiter[] limiters;
+    // Slots whose first to() since the last flush was rate limited
+    private final long[] suppressed;
+    // Every distinct destination, checked for log4j level changes on flush
+    private final LogDst[] watched;
+
+    // Start of the current event for marks, shared with segments; null if no set has a clock
+    private final EventStart eventStart;
+
+    // Per-flush counts for LogMetrics
+    private final int[] events;
+    private int loggerCalls;
+    private final AsyncFlusher flusher;
+    private final GroupCommit groupCommit;
+    private final Queue<OptBuf> returns;
+
+    // Segments forked for subtasks, merged on flush; null fields if this is one
+    private static final Comparator<LogBuf<?>> SEGMENT_ORDER =
+            Comparator.<LogBuf<?>>comparingLong(seg -> seg.segmentOrder)
+                    .thenComparingInt(seg -> seg.segmentSeq);
+    private final LogBuf<S> parent;
+    private final Queue<LogBuf<S>> segments;
+    private final Queue<LogBuf<S>> spareSegments;
+    private final AtomicInteger forks;
+    private final ArrayList<LogBuf<S>> merging;
+    private long segmentOrder;
+    private int segmentSeq;
+    private int levelEpoch;
+
+    private final Limits limits;
+    private final int checkAt;
+    private final long[] truncated;
+    private final int[] highWater;
+
+    // Flight recorder rings, events entries per set, indexed from set.ordinal() * events
+    private final Recorder recorder;
+    private final long[] recordedSlots;
+    private final long[] triggerSlots;
+    private final OptBuf[] ring;
+    private final Throwable[] ringThrown;
+    private final long[] ringNanos;
+    private final int[] ringHead;
+    private final int[] ringSize;
+
+    // Scratch state for COALESCE_BY_DST, indexed by destination ordinal
+    private final LogDst[] dsts;
+    private final OptBuf[] byDst;
+    private final OptBuf.Buf[] joined;
+    private final int[] touchedDsts;
+    private final int[] pending;
+
+    private LogBuf(S[] allSets, FlushMode flushMode, AsyncFlusher flusher, GroupCommit groupCommit,
+            LogDispatch dispatch, Limits limits, Recorder recorder, LogBuf<S> parent) {
+        this.bufs = new OptBuf[allSets.length * LEVELS];
+        this.thrown = new Throwable[bufs.length];
+        this.dirty = new long[(bufs.length + 63) >>> 6];
+        this.held = new long[dirty.length];
+        this.recorder = recorder;
+        this.events = new int[bufs.length];
+        this.limits = limits;
+        this.checkAt = limits.checkAt();
+        this.truncated = new long[dirty.length];
+        this.highWater = limits.retainCapacity() < Integer.MAX_VALUE ? new int[bufs.length] : null;
+        this.allSets = allSets;
+        this.flushMode = flushMode;
+        this.flusher = flusher;
+        this.groupCommit = groupCommit;
+        this.dispatch = dispatch;
+        this.returns = flusher != null ? new ConcurrentLinkedQueue<>() : null;
+        this.levelEpoch = Log.levelEpoch();
+        this.parent = parent;
+        this.segments = parent == null ? new ConcurrentLinkedQueue<>() : null;
+        this.spareSegments = parent == null ? new ConcurrentLinkedQueue<>() : null;
+        this.forks = parent == null ? new AtomicInteger() : null;
+        this.merging = parent == null ? new ArrayList<>() : null;
+        this.eventStart = parent != null ? parent.eventStart
+                : isTimed(allSets) ? new EventStart()
+                : null;
+        var limiters = new RateLimiter[bufs.length];
+        boolean limited = false;
+        for (S set : allSets) {
+            for (Log log : LOGS) {
+                int i = index(set, log);
+                bufs[i] = isBuffered(set, log) ? newBuf(set) : OptBuf.NOOP;
+                limiters[i] = RateLimiter.of(set, log);
+                limited |= limiters[i] != null;
+            }
+        }
+        this.limiters = limited && parent == null ? limiters : null;
+        this.suppressed = new long[dirty.length];
+        var watched = new LinkedHashSet<LogDst>();
+        for (S set : allSets) {
+            watched.addAll(List.of(set.set()));
+        }
+        this.watched = watched.toArray(new LogDst[0]);
+
+        int events = parent == null ? recorder.events() : 0;
+        this.recordedSlots = new long[dirty.length];
+        this.triggerSlots = new long[dirty.length];
+        this.ring = new OptBuf[events > 0 ? allSets.length * events : 0];
+        this.ringThrown = new Throwable[ring.length];
+        this.ringNanos = new long[ring.length];
+        this.ringHead = new int[events > 0 ? allSets.length : 0];
+        this.ringSize = new int[ringHead.length];
+        if (events > 0) {
+            for (S set : allSets) {
+                for (Log log : LOGS) {
+                    int i = index(set, log);
+                    if (recorder.records(log)) {
+                        recordedSlots[i >>> 6] |= 1L << i;
+                    } else if (log.compareTo(recorder.trigger()) >= 0) {
+                        triggerSlots[i >>> 6] |= 1L << i;
+                    }
+                }
+                for (int e = 0; e < events; e++) {
+                    ring[set.ordinal() * events + e] = newBuf(set);
+                }
+            }
+        }
+
+        int dstCount = 0;
+        if (flushMode == FlushMode.COALESCE_BY_DST) {
+            for (S set : allSets) {
+                for (LogDst dst : set.set()) {
+                    dstCount = Math.max(dstCount, ((Enum<?>) dst).ordinal() + 1);
+                }
+            }
+        }
+        this.dsts = new LogDst[dstCount];
+        this.byDst = new OptBuf[dstCount];
+        this.joined = new OptBuf.Buf[dstCount];
+        this.touchedDsts = new int[dstCount];
+        this.pending = new int[dstCount > 0 ? bufs.length : 0];
+        for (S set : allSets) {
+            for (LogDst dst : set.set()) {
+                int d = ((Enum<?>) dst).ordinal();
+                if (d < dstCount && dsts[d] == null) {
+                    dsts[d] = dst;
+                    joined[d] = new OptBuf.Buf(new StringBuilder());
+                }
+            }
+        }
+    }
 
-public record LogBuf<S extends Enum<S> & LogDstSet<?>>(
-        EnumMap<Log, OptBuf>[] bufs, S[] allSets
-) {
     public static <S extends Enum<S> & LogDstSet<?>>
     LogBuf<S> create(S[] allSets) {
+        return create(allSets, FlushMode.STRING);
+    }
+
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBuf<S> create(S[] allSets, FlushMode flushMode) {
+        return create(allSets, flushMode, Limits.NONE);
+    }
+
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBuf<S> create(S[] allSets, FlushMode flushMode, Limits limits) {
+        return create(allSets, flushMode, limits, Recorder.NONE);
+    }
+
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBuf<S> create(S[] allSets, FlushMode flushMode, Limits limits, Recorder recorder) {
+        return new LogBuf<>(allSets, flushMode, null, null, null, limits, recorder, null);
+    }
+
+    /**
+     * Like {@link #create(Enum[], FlushMode)}, but flushes through a class
+     * generated at runtime for {@code allSets}' fixed destinations, which
+     * logs each set's buffers with unrolled calls on its loggers as
+     * constants rather than looping over {@code set()} with a virtual call
+     * per destination. The class is generated once per enum and shared by
+     * every {@code LogBuf} over it. Loggers are resolved when it is
+     * generated, so each destination's {@link LogDst#getLogger()} must keep
+     * returning the same logger. Falls back to the generic path for buffers
+     * with a {@code Throwable} attached, for
+     * {@link FlushMode#COALESCE_BY_DST}'s per-destination calls, and
+     * altogether if any destination has a {@link Journal}.
+     */
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBuf<S> createSpecialized(S[] allSets, FlushMode flushMode) {
+        return createSpecialized(allSets, flushMode, Limits.NONE, Recorder.NONE);
+    }
+
+    public static <S extends Enum<S> & LogDstSet<?>> LogBuf<S> createSpecialized(
+            S[] allSets, FlushMode flushMode, Limits limits, Recorder recorder) {
+        var dispatch = LogDispatch.of(allSets.getClass().getComponentType());
+        return new LogBuf<>(allSets, flushMode, null, null, dispatch, limits, recorder, null);
+    }
+
+    /**
+     * Creates a {@code LogBuf} whose {@link #flush()} swaps each non-empty
+     * buffer for a spare and hands it to {@code flusher}, which logs it on
+     * its own thread and then returns it here for reuse.
+     */
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBuf<S> create(S[] allSets, AsyncFlusher flusher) {
+        return create(allSets, flusher, Limits.NONE);
+    }
+
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBuf<S> create(S[] allSets, AsyncFlusher flusher, Limits limits) {
+        return create(allSets, flusher, limits, Recorder.NONE);
+    }
+
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBuf<S> create(S[] allSets, AsyncFlusher flusher, Limits limits, Recorder recorder) {
+        return new LogBuf<>(allSets, FlushMode.STRING, flusher, null, null, limits, recorder, null);
+    }
+
+    /**
+     * Creates a {@code LogBuf} whose {@link #flush()} adds each non-empty
+     * buffer's text to {@code groupCommit}'s batches for its destinations,
+     * to be logged along with other events' text in one call per batch.
+     */
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBuf<S> create(S[] allSets, GroupCommit groupCommit) {
+        return create(allSets, groupCommit, Limits.NONE, Recorder.NONE);
+    }
+
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBuf<S> create(S[] allSets, GroupCommit groupCommit, Limits limits, Recorder recorder) {
+        return new LogBuf<>(allSets, FlushMode.STRING, null, groupCommit, null, limits, recorder,
+                null);
+    }
+
+    /**
+     * Returns a segment of this {@code LogBuf} for a subtask of the current
+     * event to log to from its own thread. A segment hands out buffers of
+     * its own, which are never auto-flushed. At this {@code LogBuf}'s next
+     * flush each of a segment's non-empty buffers is appended to this one's
+     * for the same set and level, after this one's own text and the text of
+     * segments forked with a lower {@code order}, or with the same order but
+     * earlier. Flushing a segment does nothing.
+     *
+     * <p> May be called from any thread, but a segment must only be used by
+     * one thread at a time, and its subtask must have completed, e.g. been
+     * joined, before the event is flushed. Segments are recycled once
+     * merged, so a segment must not be used after its event is flushed.
+     * Marks in a segment's buffers are timed from the start of the event.
+     */
+    public LogBuf<S> fork(long order) {
+        if (parent != null) {
+            return parent.fork(order);
+        }
+        var segment = spareSegments.poll();
+        if (segment == null) {
+            var segmentLimits = new Limits(0, limits.maxLength(), limits.retainCapacity());
+            segment = new LogBuf<>(allSets, FlushMode.STRING, null, null, null, segmentLimits,
+                    recorder, this);
+        }
+        segment.segmentOrder = order;
+        segment.segmentSeq = forks.getAndIncrement();
+        segments.offer(segment);
+        return segment;
+    }
+
+    /*
+     * Appends every forked segment's output to this LogBuf's slots in
+     * segment order, then recycles the segments.
+     */
+    private void merge() {
+        for (LogBuf<S> segment; (segment = segments.poll()) != null; ) {
+            merging.add(segment);
+        }
+        merging.sort(SEGMENT_ORDER);
+        StringBuilder scratch = null;
+        for (LogBuf<S> segment : merging) {
+            for (int w = 0; w < segment.dirty.length; w++) {
+                long bits = segment.dirty[w];
+                segment.dirty[w] = 0L;
+                segment.truncated[w] = 0L;
+                while (bits != 0L) {
+                    int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                    OptBuf src = segment.bufs[i];
+                    var t = segment.take(i);
+                    int count = segment.events[i];
+                    segment.events[i] = 0;
+                    int len = src.length();
+                    OptBuf dst = bufs[i];
+                    if (dst != OptBuf.NOOP && (len > 0 || t != null) && admitSegment(i)) {
+                        events[i] += count;
+                        if (len > 0) {
+                            if (dst instanceof OptBuf.Buf b) {
+                                src.formatTo(b.buf());
+                            } else {
+                                if (scratch == null) {
+                                    scratch = new StringBuilder();
+                                }
+                                scratch.setLength(0);
+                                src.formatTo(scratch);
+                                dst.add(scratch);
+                            }
+                        }
+                        if (t != null) {
+                            attach(i, t);
+                        }
+                        dirty[i >>> 6] |= 1L << i;
+                    }
+                    src.clear();
+                    segment.recycled(i, len);
+                }
+            }
+            spareSegments.offer(segment);
+        }
+        merging.clear();
+        forks.set(0);
+    }
+
+    private boolean admitSegment(int i) {
+        return limiters == null || (dirty[i >>> 6] & (1L << i)) != 0L || admit(i);
+    }
+
+    /**
+     * The sets this {@code LogBuf} was created for, indexed by ordinal.
+     */
+    public S[] allSets() {
+        return allSets;
+    }
+
+    /**
+     * A snapshot of the buffer currently handed out for each set and level,
+     * indexed by set ordinal. Allocates a new array of maps on every call.
+     * Before 0.12.0, when {@code LogBuf} was a record, this returned its live
+     * maps, and changes to them reached the {@code LogBuf}; they no longer
+     * do.
+     */
+    public EnumMap<Log, OptBuf>[] bufs() {
         @SuppressWarnings("unchecked")
-        EnumMap<Log, OptBuf>[] bufs = (EnumMap<Log, OptBuf>[]) new EnumMap[allSets.length];
+        EnumMap<Log, OptBuf>[] bySet = (EnumMap<Log, OptBuf>[]) new EnumMap<?, ?>[allSets.length];
         for (S set : allSets) {
-            bufs[set.ordinal()] = new EnumMap<>(Log.class);
-            for (Log log : Log.values()) {
-                if (log.isEnabled()) {
-                    bufs[set.ordinal()].put(log, new OptBuf.Buf(new StringBuilder()));
-                } else {
-                    bufs[set.ordinal()].put(log, OptBuf.NOOP);
-                }
+            var byLevel = new EnumMap<Log, OptBuf>(Log.class);
+            for (Log log : LOGS) {
+                byLevel.put(log, bufs[index(set, log)]);
             }
+            bySet[set.ordinal()] = byLevel;
+        }
+        return bySet;
+    }
+
+    Class<?> setClass() {
+        return allSets.getClass().getComponentType();
+    }
+
+    private OptBuf newBuf(LogDstSet<?> set) {
+        var format = set.structured();
+        var clock = set.clock();
+        if (format != null || clock != null) {
+            return new OptBuf.Fields(format != null ? format : OptBuf.Fields.Format.KEY_VALUE,
+                    clock, eventStart);
         }
-        return new LogBuf<>(bufs, allSets);
+        return set.offHeap()
+                ? new OptBuf.Direct(DIRECT_CAPACITY)
+                : new OptBuf.Buf(new StringBuilder());
+    }
+
+    private static boolean isTimed(LogDstSet<?>[] sets) {
+        for (LogDstSet<?> set : sets) {
+            if (set.clock() != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isBuffered(S set, Log log) {
+        return log.isEnabled(set) || recorder.records(log);
+    }
+
+    private static int index(Enum<?> set, Log log) {
+        return set.ordinal() * LEVELS + log.ordinal();
     }
 
+    /**
+     * Returns the buffer for {@code dstSet} at {@code log}, or
+     * {@code OptBuf.NOOP} if that combination is disabled or rate limited,
+     * and marks its slot to be flushed.
+     *
+     * <p> Text appended to a buffer held across a {@link #flush()} is logged
+     * at the next flush. Buffers may be swapped out at a flush, though, as
+     * by an {@link AsyncFlusher} or a {@link Recorder}, after which appends
+     * to the old one are lost, so call {@code to} again for each event.
+     */
     public OptBuf to(S dstSet, Log log) {
-        return getBuf(dstSet, log);
+        if (levelEpoch != Log.levelEpoch()) {
+            refreshLevels();
+        }
+        int i = index(dstSet, log);
+        OptBuf buf = bufs[i];
+        if (limiters != null && (dirty[i >>> 6] & (1L << i)) == 0L && !admit(i)) {
+            return OptBuf.NOOP;
+        }
+        dirty[i >>> 6] |= 1L << i;
+        events[i]++;
+        if (buf.length() >= checkAt) {
+            buf = limit(i, buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Like {@link #to(Enum, Log)}, and also attaches {@code thrown} to the
+     * returned buffer's slot, to be logged with its text on the next flush.
+     * A slot logs one {@code Throwable} per flush, so any attached after
+     * the first are added to it as suppressed exceptions. Nothing is kept if
+     * the level is disabled or rate limited.
+     */
+    public OptBuf to(S dstSet, Log log, Throwable thrown) {
+        OptBuf buf = to(dstSet, log);
+        if (buf != OptBuf.NOOP) {
+            attach(index(dstSet, log), thrown);
+        }
+        return buf;
+    }
+
+    private void attach(int i, Throwable t) {
+        var first = thrown[i];
+        if (first == null) {
+            thrown[i] = t;
+        } else if (first != t) {
+            first.addSuppressed(t);
+        }
+    }
+
+    /**
+     * Like {@link #to(Enum, Log)}, and also starts {@code template} on the
+     * returned buffer, returning the {@link LogTemplate.Args} to supply its
+     * slots. The {@code Args} is reused by every call to this method, so it
+     * is only valid until the next.
+     */
+    public LogTemplate.Args to(S dstSet, Log log, LogTemplate template) {
+        OptBuf buf = to(dstSet, log);
+        return buf == OptBuf.NOOP ? LogTemplate.Args.NOOP : args.start(template, buf);
     }
 
-    private OptBuf getBuf(S dstSet, Log log) {
-        return bufs[dstSet.ordinal()].get(log);
+    /*
+     * Takes slot i's rate limit decision for the current event, which later
+     * calls reuse until the next flush, so each event costs one token.
+     */
+    private boolean admit(int i) {
+        long bit = 1L << i;
+        if ((suppressed[i >>> 6] & bit) != 0L) {
+            return false;
+        }
+        if (limiters[i] == null || bufs[i] == OptBuf.NOOP || limiters[i].acquire()) {
+            return true;
+        }
+        suppressed[i >>> 6] |= bit;
+        return false;
+    }
+
+    private OptBuf limit(int i, OptBuf buf) {
+        if ((truncated[i >>> 6] & (1L << i)) != 0L) {
+            return OptBuf.NOOP;
+        }
+        int len = buf.length();
+        if (limits.maxLength() > 0 && len >= limits.maxLength()) {
+            truncate(buf, limits.maxLength());
+            buf.add(Limits.TRUNCATED);
+            if (limits.autoFlushAt() <= 0) {
+                truncated[i >>> 6] |= 1L << i;
+                return OptBuf.NOOP;
+            }
+        }
+        if (limits.autoFlushAt() > 0) {
+            flushSlot(i, buf);
+        }
+        return bufs[i];
+    }
+
+    private static int capacity(OptBuf buf) {
+        return switch (buf) {
+            case OptBuf.Buf b -> b.capacity();
+            case OptBuf.Direct d -> d.capacity();
+            case OptBuf.Fields f -> f.capacity();
+            case OptBuf.Noop n -> 0;
+        };
+    }
+
+    private static void truncate(OptBuf buf, int length) {
+        switch (buf) {
+            case OptBuf.Buf b -> b.truncate(length);
+            case OptBuf.Direct d -> d.truncate(length);
+            case OptBuf.Fields f -> f.truncate(length);
+            case OptBuf.Noop n -> {}
+        }
     }
 
     void flush() {
-        for (S dstSet : allSets) {
-            for (Log log : Log.ENABLED_LEVELS.orElseThrow()) {
-                OptBuf.Buf buf = (OptBuf.Buf) bufs[dstSet.ordinal()].get(log);
-                if (buf.length() > 0) {
-                    var str = buf.getAndClear();
+        if (parent != null) {
+            return;
+        }
+        if (!segments.isEmpty()) {
+            merge();
+        }
+        markHeld();
+        if (eventStart != null) {
+            eventStart.reset();
+        }
+        if (!LogMetrics.isEnabled()) {
+            flushSlots();
+            return;
+        }
+        var event = LogMetrics.recordsFlushEvents() ? new LogMetrics.FlushEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        long start = System.nanoTime();
+        loggerCalls = 0;
+        int buffers = 0;
+        long length = 0;
+        for (int w = 0; w < dirty.length; w++) {
+            long bits = dirty[w];
+            while (bits != 0L) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                OptBuf buf = bufs[i];
+                int count = events[i];
+                if (buf == OptBuf.NOOP) {
+                    continue;
+                }
+                int len = buf.length();
+                LogMetrics.recordEvents(allSets[i / LEVELS], LOGS[i % LEVELS], count, len);
+                if (len > 0) {
+                    buffers++;
+                    length += len;
+                    LogMetrics.recordCapacity(capacity(buf));
+                }
+            }
+        }
+        flushSlots();
+        LogMetrics.recordFlush(System.nanoTime() - start, loggerCalls);
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.buffers = buffers;
+            event.loggerCalls = loggerCalls;
+            event.length = length;
+            event.commit();
+        }
+    }
+
+    /*
+     * Marks dirty the slots handed out before an earlier flush whose buffers
+     * have been appended to since, then adds this flush's slots to them.
+     */
+    private void markHeld() {
+        for (int w = 0; w < dirty.length; w++) {
+            long bits = held[w] & ~dirty[w];
+            held[w] |= dirty[w];
+            while (bits != 0L) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (bufs[i].length() > 0) {
+                    dirty[w] |= 1L << i;
+                }
+            }
+        }
+    }
+
+    private void flushSlots() {
+        for (LogDst dst : watched) {
+            LevelMasks.check(dst);
+        }
+        if (levelEpoch != Log.levelEpoch()) {
+            refreshLevels();
+        }
+        if (limits.maxLength() > 0) {
+            capLengths();
+        }
+        if (ring.length > 0) {
+            record();
+        }
+        if (flushMode == FlushMode.COALESCE_BY_DST && flusher == null) {
+            flushByDst();
+            return;
+        }
+        for (int w = 0; w < dirty.length; w++) {
+            long bits = dirty[w];
+            dirty[w] = 0L;
+            while (bits != 0L) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                events[i] = 0;
+                if (hasOutput(i)) {
+                    flushSlot(i, bufs[i]);
+                }
+            }
+            truncated[w] = 0L;
+            suppressed[w] = 0L;
+        }
+    }
+
+    /*
+     * Cuts each dirty buffer longer than maxLength, such as one filled by a
+     * single append since its last to(), or by merged segments.
+     */
+    private void capLengths() {
+        for (int w = 0; w < dirty.length; w++) {
+            long bits = dirty[w] & ~truncated[w];
+            while (bits != 0L) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                OptBuf buf = bufs[i];
+                if (buf.length() > limits.maxLength()) {
+                    truncate(buf, limits.maxLength());
+                    buf.add(Limits.TRUNCATED);
+                }
+            }
+        }
+    }
+
+    private void flushSlot(int i, OptBuf buf) {
+        int len = buf.length();
+        S dstSet = allSets[i / LEVELS];
+        Log log = LOGS[i % LEVELS];
+        bufs[i] = emit(dstSet, log, buf, take(i));
+        recycled(i, len);
+    }
+
+    private boolean hasOutput(int i) {
+        return bufs[i].length() > 0 || thrown[i] != null;
+    }
+
+    private Throwable take(int i) {
+        var t = thrown[i];
+        thrown[i] = null;
+        return t;
+    }
+
+    /*
+     * Updates slot i's decayed high-water mark with the length it was just
+     * flushed at, and trims its now-empty buffer if its capacity has grown
+     * well beyond both that mark and the retained capacity.
+     */
+    private void recycled(int i, int len) {
+        if (highWater == null) {
+            return;
+        }
+        int hw = highWater[i];
+        hw = Math.max(len, hw - (hw >>> 3));
+        highWater[i] = hw;
+        int keep = Math.max(hw, limits.retainCapacity());
+        switch (bufs[i]) {
+            case OptBuf.Buf b when b.capacity() / 2 > keep -> b.trim(keep);
+            case OptBuf.Direct d when d.capacity() / 2 > keep -> d.trim(keep);
+            case OptBuf.Fields f when f.capacity() / 2 > keep -> f.trim(keep);
+            default -> {}
+        }
+    }
+
+    /*
+     * Brings each slot in line with the current levels after Log.setLevel()
+     * or a log4j reconfiguration: newly enabled levels get a buffer, and newly
+     * disabled ones drop theirs, along with anything written to it, in favor
+     * of NOOP.
+     */
+    private void refreshLevels() {
+        levelEpoch = Log.levelEpoch();
+        for (S set : allSets) {
+            for (Log log : LOGS) {
+                int i = index(set, log);
+                boolean enabled = isBuffered(set, log);
+                boolean buffered = bufs[i] != OptBuf.NOOP;
+                if (enabled && !buffered) {
+                    bufs[i] = newBuf(set);
+                } else if (!enabled && buffered) {
+                    bufs[i] = OptBuf.NOOP;
+                    thrown[i] = null;
+                }
+            }
+        }
+    }
+
+    /*
+     * Takes the recorded levels' dirty slots out of this flush. Each set with
+     * output at a triggering level has its ring dumped and its recorded
+     * slots logged straight after; every other set's non-empty recorded
+     * slots are swapped into its ring.
+     */
+    private void record() {
+        long now = System.nanoTime();
+        int lastSet = -1;
+        boolean triggered = false;
+        for (int w = 0; w < dirty.length; w++) {
+            long bits = dirty[w] & (recordedSlots[w] | triggerSlots[w]);
+            dirty[w] &= ~recordedSlots[w];
+            while (bits != 0L) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                int s = i / LEVELS;
+                if (s != lastSet) {
+                    lastSet = s;
+                    triggered = isTriggered(s);
+                    if (triggered) {
+                        dump(allSets[s], now);
+                    }
+                }
+                if ((recordedSlots[w] & (1L << i)) == 0L || !hasOutput(i)) {
+                    continue;
+                }
+                if (triggered) {
+                    bufs[i] = emit(allSets[s], recorder.trigger(), bufs[i], take(i));
+                } else {
+                    bufs[i] = toRing(s, bufs[i], take(i), now);
+                }
+            }
+        }
+    }
+
+    private boolean isTriggered(int s) {
+        for (int l = recorder.trigger().ordinal(); l < LEVELS; l++) {
+            int i = s * LEVELS + l;
+            if ((dirty[i >>> 6] & (1L << i)) != 0L && hasOutput(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Swaps buf, with its Throwable if any, into set s's ring in place of its
+     * oldest entry, returning that entry's buffer, cleared, for reuse.
+     */
+    private OptBuf toRing(int s, OptBuf buf, Throwable t, long now) {
+        int events = recorder.events();
+        int r = s * events + ringHead[s];
+        OptBuf spare = ring[r];
+        spare.clear();
+        ring[r] = buf;
+        ringThrown[r] = t;
+        ringNanos[r] = now;
+        ringHead[s] = (ringHead[s] + 1) % events;
+        ringSize[s] = Math.min(ringSize[s] + 1, events);
+        return spare;
+    }
+
+    /**
+     * Logs every set's flight recorder ring, as when output at the
+     * recorder's trigger level is flushed, and empties it. Does nothing
+     * without a {@link Recorder}.
+     */
+    public void dump() {
+        long now = System.nanoTime();
+        for (int s = 0; s < ringHead.length; s++) {
+            dump(allSets[s], now);
+        }
+    }
+
+    private void dump(S set, long now) {
+        int s = set.ordinal();
+        int events = recorder.events();
+        long window = recorder.window().toNanos();
+        int n = ringSize[s];
+        for (int k = n; k > 0; k--) {
+            int r = s * events + Math.floorMod(ringHead[s] - k, events);
+            OptBuf buf = ring[r];
+            var t = ringThrown[r];
+            ringThrown[r] = null;
+            if (window > 0L && now - ringNanos[r] > window) {
+                buf.clear();
+            } else {
+                ring[r] = emit(set, recorder.trigger(), buf, t);
+            }
+        }
+        ringSize[s] = 0;
+    }
+
+    /*
+     * Logs buf, and thrown if non-null, to dstSet at the given level,
+     * returning the buffer to use in its place: buf itself, cleared, or a
+     * spare if buf was handed off to the AsyncFlusher. With a GroupCommit,
+     * buf's text joins its batches instead.
+     */
+    private OptBuf emit(S dstSet, Log log, OptBuf buf, Throwable thrown) {
+        if (thrown != null) {
+            var dedup = dstSet.stackTraceDedup();
+            if (dedup != null) {
+                thrown = dedup.apply(buf, thrown);
+            }
+        }
+        if (groupCommit != null) {
+            groupCommit.append(log, dstSet.set(), buf, thrown);
+            buf.clear();
+            return buf;
+        }
+        loggerCalls += dstSet.set().length;
+        if (flusher == null) {
+            flush(dstSet, log, buf, thrown);
+            return buf;
+        }
+        if (flusher.publish(log, dstSet.set(), buf, thrown, returns)) {
+            var spare = returns.poll();
+            return spare != null ? spare : newBuf(dstSet);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    private void flush(S dstSet, Log log, OptBuf buf, Throwable thrown) {
+        switch (flushMode) {
+            case STRING -> {
+                var str = buf.getAndClear();
+                if (!log.isEnabled()) {
+                    return;
+                }
+                if (dispatch != null && thrown == null) {
+                    dispatch.log(dstSet.ordinal(), log.ordinal(), str);
+                } else {
+                    for (LogDst dst : dstSet.set()) {
+                        log.toDst(dst, str, thrown);
+                    }
+                }
+            }
+            case REUSABLE_MESSAGE, COALESCE_BY_DST -> {
+                var msg = message.wrap(buf);
+                if (dispatch != null && thrown == null) {
+                    dispatch.log(dstSet.ordinal(), log.ordinal(), msg);
+                } else {
                     for (LogDst dst : dstSet.set()) {
-                        log.to(dst, str);
+                        log.toDst(dst, buf, msg, thrown);
                     }
                 }
+                buf.clear();
+            }
+        }
+    }
+
+    private void flushByDst() {
+        int n = 0;
+        for (int w = 0; w < dirty.length; w++) {
+            long bits = dirty[w];
+            dirty[w] = 0L;
+            while (bits != 0L) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                events[i] = 0;
+                if (thrown[i] != null) {
+                    flushSlot(i, bufs[i]);
+                } else if (bufs[i].length() > 0) {
+                    pending[n++] = i;
+                }
             }
+            truncated[w] = 0L;
+            suppressed[w] = 0L;
+        }
+
+        for (Log log : LOGS) {
+            int touched = 0;
+            for (int p = 0; p < n; p++) {
+                int i = pending[p];
+                if (i % LEVELS != log.ordinal()) {
+                    continue;
+                }
+                OptBuf buf = bufs[i];
+                for (LogDst dst : allSets[i / LEVELS].set()) {
+                    int d = ((Enum<?>) dst).ordinal();
+                    OptBuf prior = byDst[d];
+                    if (prior == null) {
+                        byDst[d] = buf;
+                        touchedDsts[touched++] = d;
+                    } else {
+                        var join = joined[d];
+                        if (prior != join) {
+                            join.clear();
+                            prior.formatTo(join.buf());
+                            byDst[d] = join;
+                        }
+                        join.add('\n');
+                        buf.formatTo(join.buf());
+                    }
+                }
+            }
+            for (int t = 0; t < touched; t++) {
+                int d = touchedDsts[t];
+                log.toDst(dsts[d], byDst[d], message.wrap(byDst[d]));
+                loggerCalls++;
+                byDst[d] = null;
+            }
+        }
+
+        for (int p = 0; p < n; p++) {
+            int i = pending[p];
+            int len = bufs[i].length();
+            bufs[i].clear();
+            recycled(i, len);
         }
     }
 }
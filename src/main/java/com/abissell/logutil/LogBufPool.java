@@ -0,0 +1,111 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Lends {@link LogBuf}s to short-lived tasks, such as requests each handled
+ * on its own virtual thread, so that any code a task calls can log to its
+ * event through {@link EventLog#current(Class)} without the
+ * {@code EventLog} being passed down, and without a {@code LogBuf} or
+ * {@code ThreadLocal} per thread.
+ *
+ * <p> {@link #run} and {@link #call} take an idle {@code LogBuf} from the
+ * pool, or create one if none is idle, bind it through a
+ * {@link ScopedValue} for the extent of the task, flush it when the task
+ * exits, normally or not, and return it to the pool. At most
+ * {@code maxIdle} are kept between tasks. Nothing else is bounded: a task
+ * never waits for a {@code LogBuf}, so while more than {@code maxIdle} tasks
+ * are in flight the pool creates one for each, to be discarded on release.
+ * Bound the tasks themselves, e.g. with a {@code Semaphore}, to bound the
+ * memory their {@code LogBuf}s take.
+ *
+ * <p> A task's {@code LogBuf} is confined to the task's thread. Subtasks
+ * which inherit its binding, e.g. in a {@code StructuredTaskScope}, should
+ * log through {@link EventLog#fork(long)}; see {@link EventLog}.
+ */
+public final class LogBufPool<S extends Enum<S> & LogDstSet<?>> {
+    private final ArrayBlockingQueue<EventLog<S>> idle;
+    private final Supplier<LogBuf<S>> factory;
+
+    private LogBufPool(int maxIdle, Supplier<LogBuf<S>> factory) {
+        if (maxIdle < 1) {
+            throw new IllegalArgumentException("maxIdle must be positive: " + maxIdle);
+        }
+        this.idle = new ArrayBlockingQueue<>(maxIdle);
+        this.factory = factory;
+    }
+
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBufPool<S> create(S[] allSets, int maxIdle) {
+        return create(maxIdle, () -> LogBuf.create(allSets));
+    }
+
+    /**
+     * Creates a pool whose {@code LogBuf}s are made by {@code factory}, e.g.
+     * to choose their {@link LogBuf.FlushMode} or flush them through an
+     * {@link AsyncFlusher}.
+     */
+    public static <S extends Enum<S> & LogDstSet<?>>
+    LogBufPool<S> create(int maxIdle, Supplier<LogBuf<S>> factory) {
+        return new LogBufPool<>(maxIdle, factory);
+    }
+
+    /**
+     * Runs {@code op} with a pooled {@code LogBuf} bound as
+     * {@link EventLog#current(Class)}, flushing it once {@code op} exits.
+     */
+    public void run(Runnable op) {
+        var eventLog = acquire();
+        try {
+            ScopedValue.where(EventLog.CURRENT, bind(eventLog)).run(op);
+        } finally {
+            release(eventLog);
+        }
+    }
+
+    /**
+     * Calls {@code op} with a pooled {@code LogBuf} bound as
+     * {@link EventLog#current(Class)}, flushing it once {@code op} exits.
+     */
+    public <T, X extends Throwable> T call(ScopedValue.CallableOp<? extends T, X> op) throws X {
+        var eventLog = acquire();
+        try {
+            return ScopedValue.where(EventLog.CURRENT, bind(eventLog)).call(op);
+        } finally {
+            release(eventLog);
+        }
+    }
+
+    private static EventLog.Bound bind(EventLog<?> eventLog) {
+        return new EventLog.Bound(eventLog, Thread.currentThread());
+    }
+
+    private EventLog<S> acquire() {
+        var eventLog = idle.poll();
+        return eventLog != null ? eventLog : new EventLog<>(factory.get());
+    }
+
+    private void release(EventLog<S> eventLog) {
+        try {
+            eventLog.close();
+        } finally {
+            idle.offer(eventLog);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A source of timestamps for {@link OptBuf#mark()}, in nanoseconds on
+ * {@link System#nanoTime()}'s timebase, so that readings from different
+ * clocks can be compared. {@link #NANO_TIME} reads the system timer on every
+ * call; a {@link Coarse} clock returns the reading its background ticker last
+ * took, trading resolution for a read which costs no more than that of a
+ * volatile field.
+ */
+@FunctionalInterface
+public interface LogClock {
+    LogClock NANO_TIME = System::nanoTime;
+
+    long nanos();
+
+    /**
+     * Starts a clock which re-reads {@link System#nanoTime()} every
+     * {@code resolution} on a ticker thread created by
+     * {@code threadFactory}, which should make it a daemon.
+     */
+    static Coarse coarse(ThreadFactory threadFactory, Duration resolution) {
+        var clock = new Coarse(resolution.toNanos());
+        clock.ticker = threadFactory.newThread(clock::tick);
+        clock.ticker.start();
+        return clock;
+    }
+
+    final class Coarse implements LogClock, AutoCloseable {
+        private final long resolutionNanos;
+        private volatile long nanos = System.nanoTime();
+        private volatile boolean running = true;
+        private Thread ticker;
+
+        private Coarse(long resolutionNanos) {
+            if (resolutionNanos <= 0L) {
+                throw new IllegalArgumentException(
+                        "resolution must be positive: " + resolutionNanos + "ns");
+            }
+            this.resolutionNanos = resolutionNanos;
+        }
+
+        @Override
+        public long nanos() {
+            return nanos;
+        }
+
+        /**
+         * Stops the ticker, leaving the clock at its last reading.
+         */
+        @Override
+        public void close() {
+            running = false;
+            LockSupport.unpark(ticker);
+            try {
+                ticker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void tick() {
+            while (running) {
+                LockSupport.parkNanos(resolutionNanos);
+                nanos = System.nanoTime();
+            }
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import static java.lang.constant.ConstantDescs.BSM_CLASS_DATA_AT;
+import static java.lang.constant.ConstantDescs.CD_String;
+import static java.lang.constant.ConstantDescs.CD_int;
+import static java.lang.constant.ConstantDescs.CD_void;
+import static java.lang.constant.ConstantDescs.DEFAULT_NAME;
+import static java.lang.constant.ConstantDescs.INIT_NAME;
+import static java.lang.constant.ConstantDescs.MTD_void;
+
+import java.lang.classfile.ClassBuilder;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.Label;
+import java.lang.classfile.instruction.SwitchCase;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.DynamicConstantDesc;
+import java.lang.constant.MethodTypeDesc;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.Message;
+
+/**
+ * Logs a flushed buffer to every destination of a set through a hidden class
+ * generated for one {@link LogDstSet} enum's fixed topology. For each set the
+ * class has a straight-line method which switches on the level and then
+ * calls the level's method on each destination's {@link Logger} in turn,
+ * with the loggers loaded as constants. Where {@link Log#toLogger} is a
+ * megamorphic virtual call inside a loop over {@code dstSet.set()}, each
+ * call here has a constant receiver and a fixed target, which the JIT can
+ * inline as it would hand-written logging to a static logger.
+ *
+ * <p> One class is generated per enum, the first time {@link #of} is called
+ * for it, and shared by every {@code LogBuf} over that enum, so the call to
+ * {@link #log} in a flush only ever sees one receiver type. Loggers are
+ * resolved once, when the class is generated, so each destination's
+ * {@link LogDst#getLogger()} must keep returning the same logger.
+ */
+abstract class LogDispatch {
+    private static final ClassDesc CD_LOGGER = ClassDesc.of(Logger.class.getName());
+    private static final ClassDesc CD_MESSAGE = ClassDesc.of(Message.class.getName());
+    private static final ClassDesc CD_DISPATCH = ClassDesc.of(LogDispatch.class.getName());
+    private static final ClassDesc CD_GENERATED =
+            ClassDesc.of(LogDispatch.class.getName() + "$Generated");
+    private static final Log[] LOGS = Log.values();
+    private static final ClassValue<Optional<LogDispatch>> BY_ENUM = new ClassValue<>() {
+        @Override
+        protected Optional<LogDispatch> computeValue(Class<?> type) {
+            return Optional.ofNullable(generate((LogDstSet<?>[]) type.getEnumConstants()));
+        }
+    };
+
+    abstract void log(int set, int level, Message msg);
+
+    abstract void log(int set, int level, String msg);
+
+    /**
+     * The {@code LogDispatch} for the {@link LogDstSet} enum {@code type},
+     * generating it on first use, or {@code null} if any of its destinations
+     * writes to a {@link Journal}.
+     */
+    static LogDispatch of(Class<?> type) {
+        return BY_ENUM.get(type).orElse(null);
+    }
+
+    /**
+     * Generates and instantiates a {@code LogDispatch} for {@code allSets},
+     * indexed by their position in the array, or returns {@code null} if any
+     * of their destinations writes to a {@link Journal}, which the generated
+     * code does not handle.
+     */
+    private static LogDispatch generate(LogDstSet<?>[] allSets) {
+        var loggers = new ArrayList<Logger>();
+        var loggerIndex = new int[allSets.length][];
+        for (int s = 0; s < allSets.length; s++) {
+            var dsts = allSets[s].set();
+            loggerIndex[s] = new int[dsts.length];
+            for (int d = 0; d < dsts.length; d++) {
+                if (dsts[d].journal() != null) {
+                    return null;
+                }
+                int i = loggers.indexOf(dsts[d].getLogger());
+                if (i < 0) {
+                    i = loggers.size();
+                    loggers.add(dsts[d].getLogger());
+                }
+                loggerIndex[s][d] = i;
+            }
+        }
+
+        byte[] bytes = ClassFile.of().build(CD_GENERATED, clb -> {
+            clb.withSuperclass(CD_DISPATCH);
+            clb.withFlags(ClassFile.ACC_FINAL | ClassFile.ACC_SUPER | ClassFile.ACC_SYNTHETIC);
+            clb.withMethodBody(INIT_NAME, MTD_void, ClassFile.ACC_PUBLIC, cob -> cob
+                    .aload(0)
+                    .invokespecial(CD_DISPATCH, INIT_NAME, MTD_void)
+                    .return_());
+            for (ClassDesc msgType : List.of(CD_MESSAGE, CD_String)) {
+                for (int s = 0; s < allSets.length; s++) {
+                    addSetMethod(clb, msgType, s, loggerIndex[s]);
+                }
+                addDispatchMethod(clb, msgType, allSets.length);
+            }
+        });
+
+        try {
+            var lookup = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(bytes, List.copyOf(loggers), true);
+            var ctor = lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class));
+            return (LogDispatch) ctor.invoke();
+        } catch (Throwable t) {
+            throw new IllegalStateException("Could not generate LogDispatch", t);
+        }
+    }
+
+    private static String setMethod(int s) {
+        return "set" + s;
+    }
+
+    /*
+     * static void set<s>(int level, T msg) {
+     *     switch (level) {
+     *         case <l> -> { logger0.<level>(msg); logger1.<level>(msg); ... }
+     *         ...
+     *     }
+     * }
+     */
+    private static void addSetMethod(ClassBuilder clb, ClassDesc msgType, int s, int[] loggers) {
+        var levelType = MethodTypeDesc.of(CD_void, msgType);
+        clb.withMethodBody(setMethod(s), MethodTypeDesc.of(CD_void, CD_int, msgType),
+                ClassFile.ACC_PRIVATE | ClassFile.ACC_STATIC, cob -> {
+            Label end = cob.newLabel();
+            var cases = new ArrayList<SwitchCase>();
+            for (Log log : LOGS) {
+                cases.add(SwitchCase.of(log.ordinal(), cob.newLabel()));
+            }
+            cob.iload(0).tableswitch(0, LOGS.length - 1, end, cases);
+            for (Log log : LOGS) {
+                cob.labelBinding(cases.get(log.ordinal()).target());
+                String name = log.name().toLowerCase(Locale.ROOT);
+                for (int i : loggers) {
+                    var logger = DynamicConstantDesc.ofNamed(
+                            BSM_CLASS_DATA_AT, DEFAULT_NAME, CD_LOGGER, i);
+                    cob.ldc(logger)
+                            .aload(1)
+                            .invokeinterface(CD_LOGGER, name, levelType);
+                }
+                cob.goto_(end);
+            }
+            cob.labelBinding(end);
+            cob.return_();
+        });
+    }
+
+    /*
+     * void log(int set, int level, T msg) {
+     *     switch (set) {
+     *         case <s> -> set<s>(level, msg);
+     *         ...
+     *     }
+     * }
+     */
+    private static void addDispatchMethod(ClassBuilder clb, ClassDesc msgType, int sets) {
+        var setType = MethodTypeDesc.of(CD_void, CD_int, msgType);
+        clb.withMethodBody("log", MethodTypeDesc.of(CD_void, CD_int, CD_int, msgType), 0, cob -> {
+            Label end = cob.newLabel();
+            var cases = new ArrayList<SwitchCase>();
+            for (int s = 0; s < sets; s++) {
+                cases.add(SwitchCase.of(s, cob.newLabel()));
+            }
+            cob.iload(1).tableswitch(0, Math.max(sets - 1, 0), end, cases);
+            for (int s = 0; s < sets; s++) {
+                cob.labelBinding(cases.get(s).target())
+                        .iload(2)
+                        .aload(3)
+                        .invokestatic(CD_GENERATED, setMethod(s), setType)
+                        .goto_(end);
+            }
+            cob.labelBinding(end);
+            cob.return_();
+        });
+    }
+}
@@ -18,5 +18,19 @@ package com.abissell.logutil;
 import org.apache.logging.log4j.Logger;
 
 public interface LogDst {
+    /**
+     * This destination's logger. Destinations of sets flushed through
+     * {@link LogBuf#createSpecialized} must always return the same one,
+     * since it is resolved only once.
+     */
     Logger getLogger();
+
+    /**
+     * The {@link Journal} to append this destination's output to in place of
+     * its logger, or {@code null} to log normally. The logger's level still
+     * gates what is written.
+     */
+    default Journal journal() {
+        return null;
+    }
 }
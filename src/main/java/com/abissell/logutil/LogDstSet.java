@@ -17,4 +17,51 @@ package com.abissell.logutil;
 
 public interface LogDstSet<D extends Enum<D> & LogDst> {
     D[] set();
+
+    /**
+     * Whether {@link LogBuf#create} should buffer this set's output in
+     * off-heap {@link OptBuf.Direct} buffers rather than on-heap
+     * {@code StringBuilder}s.
+     */
+    default boolean offHeap() {
+        return false;
+    }
+
+    /**
+     * The rendering for {@link OptBuf.Fields} buffers if {@link LogBuf#create}
+     * should record this set's output as structured binary entries, or
+     * {@code null} to buffer formatted text.
+     */
+    default OptBuf.Fields.Format structured() {
+        return null;
+    }
+
+    /**
+     * The {@link RateLimit} on statements logged to this set at
+     * {@code log}, or {@code null} for none. Consulted once per enum class,
+     * so the answer must not change.
+     */
+    default RateLimit rateLimit(Log log) {
+        return null;
+    }
+
+    /**
+     * The {@link StackTraceDedup} abbreviating repeated stack traces attached
+     * to this set's buffered output, or {@code null} to log every trace in
+     * full. The same instance should be returned on every call.
+     */
+    default StackTraceDedup stackTraceDedup() {
+        return null;
+    }
+
+    /**
+     * The {@link LogClock} which {@link OptBuf#mark()} reads in this set's
+     * buffered output, or {@code null} to ignore marks. {@link LogBuf#create}
+     * records the output of a set with a clock in {@link OptBuf.Fields}
+     * buffers, in its {@link #structured()} format or else as
+     * {@code KEY_VALUE}, so that marks are only formatted at flush.
+     */
+    default LogClock clock() {
+        return null;
+    }
 }
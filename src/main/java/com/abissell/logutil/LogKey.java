@@ -0,0 +1,79 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named field of a structured log event, interned by name so that an
+ * {@link OptBuf.Fields} buffer can record it as a small integer id and
+ * resolve the name only when rendering. Keys are intended to be created once
+ * and held in {@code static final} fields:
+ *
+ * <pre>{@code
+ * static final LogKey PX = LogKey.of("px");
+ * ...
+ * eventLog.to(dstSet, Log.DEBUG).add("fill").add(PX, px).add(QTY, qty);
+ * }</pre>
+ */
+public final class LogKey {
+    private static final int MAX_ID = 0xFFFFFF;
+    private static final ConcurrentHashMap<String, LogKey> BY_NAME = new ConcurrentHashMap<>();
+    private static volatile String[] names = new String[64];
+    private static int count;
+
+    private final int id;
+    private final String name;
+
+    private LogKey(int id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public static LogKey of(String name) {
+        return BY_NAME.computeIfAbsent(name, LogKey::register);
+    }
+
+    private static synchronized LogKey register(String name) {
+        if (count == MAX_ID) {
+            throw new IllegalStateException("Too many LogKeys: " + name);
+        }
+        int id = ++count;
+        if (id >= names.length) {
+            names = Arrays.copyOf(names, names.length * 2);
+        }
+        names[id] = name;
+        return new LogKey(id, name);
+    }
+
+    static String name(int id) {
+        return names[id];
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
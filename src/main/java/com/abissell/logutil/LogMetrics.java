@@ -0,0 +1,272 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+
+/**
+ * Opt-in measurements of what logging costs: statements and buffered
+ * length per {@link LogDstSet} and {@link Log} level, {@link LogBuf#flush()}
+ * durations, logger calls per flush and buffer capacities. Counters are
+ * striped {@code LongAdder}s and histograms have fixed power-of-two buckets,
+ * so recording from many threads stays cheap. {@code LogBuf}s count
+ * statements in plain per-slot fields and publish them once per flush.
+ *
+ * <p> Read the measurements with {@link #snapshot()}, or record them with
+ * JDK Flight Recorder: while enabled, each flush is recorded as a
+ * {@link FlushEvent} and the running totals as periodic
+ * {@link VolumeEvent}s.
+ *
+ * <p> Lengths are in chars, or in bytes for {@link OptBuf.Direct} buffers.
+ */
+public final class LogMetrics {
+    /**
+     * Running totals of the statements logged to a set at a level, and of
+     * their length.
+     */
+    public record Volume(LogDstSet<?> set, Log level, long events, long length) {}
+
+    /**
+     * Counts of recorded values by bucket: bucket 0 counts zeros, and bucket
+     * {@code b > 0} counts values in {@code [2^(b-1), 2^b)}.
+     */
+    public record Histogram(long[] counts) {
+        public long count() {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            return count;
+        }
+
+        /**
+         * The upper bound of the bucket holding the value at
+         * {@code quantile}, between 0 and 1, of those recorded.
+         */
+        public long valueAt(double quantile) {
+            long rank = (long) Math.ceil(quantile * count());
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= rank && seen > 0) {
+                    return upperBound(b);
+                }
+            }
+            return 0;
+        }
+
+        public static long upperBound(int bucket) {
+            return bucket == 0 ? 0 : bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+        }
+    }
+
+    public record Snapshot(
+            List<Volume> volumes,
+            Histogram flushNanos,
+            Histogram loggerCallsPerFlush,
+            Histogram bufferCapacity) {}
+
+    @Name("com.abissell.logutil.Flush")
+    @Label("LogBuf Flush")
+    @Category({ "Logging", "java-log-util" })
+    @Description("A flush of a LogBuf's buffered statements")
+    public static final class FlushEvent extends Event {
+        @Label("Buffers")
+        int buffers;
+
+        @Label("Logger Calls")
+        int loggerCalls;
+
+        @Label("Length")
+        @Description("Chars buffered, or bytes for off-heap buffers")
+        long length;
+    }
+
+    @Name("com.abissell.logutil.Volume")
+    @Label("Log Volume")
+    @Category({ "Logging", "java-log-util" })
+    @Description("Running totals of statements logged to a LogDstSet at a level")
+    @Period("10 s")
+    @StackTrace(false)
+    public static final class VolumeEvent extends Event {
+        @Label("Set")
+        String set;
+
+        @Label("Level")
+        String level;
+
+        @Label("Events")
+        long events;
+
+        @Label("Length")
+        @Description("Chars logged, or bytes for off-heap buffers")
+        long length;
+    }
+
+    // Looked up on first use, so merely loading this class does not start JFR
+    private static final class FlushEvents {
+        static final EventType TYPE = EventType.getEventType(FlushEvent.class);
+    }
+
+    /*
+     * Fixed power-of-two buckets of striped counters.
+     */
+    static final class Buckets {
+        private final LongAdder[] counts = new LongAdder[65];
+
+        Buckets() {
+            for (int b = 0; b < counts.length; b++) {
+                counts[b] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            counts[64 - Long.numberOfLeadingZeros(Math.max(value, 0L))].increment();
+        }
+
+        Histogram snapshot() {
+            var snapshot = new long[counts.length];
+            for (int b = 0; b < counts.length; b++) {
+                snapshot[b] = counts[b].sum();
+            }
+            return new Histogram(snapshot);
+        }
+    }
+
+    private static final class Volumes {
+        final LogDstSet<?>[] sets;
+        final LongAdder[] events;
+        final LongAdder[] lengths;
+
+        Volumes(LogDstSet<?>[] sets) {
+            this.sets = sets;
+            this.events = new LongAdder[sets.length * LEVELS];
+            this.lengths = new LongAdder[events.length];
+            for (int i = 0; i < events.length; i++) {
+                events[i] = new LongAdder();
+                lengths[i] = new LongAdder();
+            }
+        }
+    }
+
+    private static final Log[] LOGS = Log.values();
+    private static final int LEVELS = LOGS.length;
+    private static final List<Volumes> ALL_VOLUMES = new CopyOnWriteArrayList<>();
+    private static final ClassValue<Volumes> ENUM_VOLUMES = new ClassValue<>() {
+        @Override
+        protected Volumes computeValue(Class<?> type) {
+            var volumes = new Volumes((LogDstSet<?>[]) type.getEnumConstants());
+            ALL_VOLUMES.add(volumes);
+            return volumes;
+        }
+    };
+    private static final Buckets FLUSH_NANOS = new Buckets();
+    private static final Buckets LOGGER_CALLS = new Buckets();
+    private static final Buckets CAPACITIES = new Buckets();
+
+    private static volatile boolean enabled;
+    private static boolean periodicRegistered;
+
+    private LogMetrics() {}
+
+    public static synchronized void enable() {
+        if (!periodicRegistered) {
+            FlightRecorder.addPeriodicEvent(VolumeEvent.class, LogMetrics::emitVolumes);
+            periodicRegistered = true;
+        }
+        enabled = true;
+    }
+
+    public static void disable() {
+        enabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /*
+     * Whether a running recording has FlushEvents enabled, so that flushes
+     * only allocate one when it may be committed.
+     */
+    static boolean recordsFlushEvents() {
+        return FlushEvents.TYPE.isEnabled();
+    }
+
+    /**
+     * The totals recorded since the JVM started, with a {@link Volume} for
+     * each set and level which has had statements logged to it. Totals are
+     * read without stopping writers, so are only consistent with each other
+     * once logging has quiesced.
+     */
+    public static Snapshot snapshot() {
+        var volumes = new ArrayList<Volume>();
+        for (Volumes v : ALL_VOLUMES) {
+            for (int i = 0; i < v.events.length; i++) {
+                long events = v.events[i].sum();
+                if (events > 0) {
+                    volumes.add(new Volume(v.sets[i / LEVELS], LOGS[i % LEVELS], events,
+                            v.lengths[i].sum()));
+                }
+            }
+        }
+        return new Snapshot(List.copyOf(volumes), FLUSH_NANOS.snapshot(),
+                LOGGER_CALLS.snapshot(), CAPACITIES.snapshot());
+    }
+
+    static void recordEvents(LogDstSet<?> set, Log log, long events, long length) {
+        if (set instanceof Enum<?> e) {
+            var volumes = ENUM_VOLUMES.get(e.getDeclaringClass());
+            int i = e.ordinal() * LEVELS + log.ordinal();
+            volumes.events[i].add(events);
+            volumes.lengths[i].add(length);
+        }
+    }
+
+    static void recordFlush(long nanos, int loggerCalls) {
+        FLUSH_NANOS.record(nanos);
+        LOGGER_CALLS.record(loggerCalls);
+    }
+
+    static void recordCapacity(int capacity) {
+        CAPACITIES.record(capacity);
+    }
+
+    private static void emitVolumes() {
+        for (Volume volume : snapshot().volumes()) {
+            var event = new VolumeEvent();
+            var set = (Enum<?>) volume.set();
+            event.set = set.getDeclaringClass().getSimpleName() + "." + set.name();
+            event.level = volume.level().name();
+            event.events = volume.events();
+            event.length = volume.length();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.util.ArrayList;
+
+/**
+ * A message shape parsed once into constant segments and typed slots, so
+ * that an event which logs the same shape on every call costs a bulk append
+ * per segment and one primitive append per argument, with no varargs array
+ * or boxing:
+ *
+ * <pre>{@code
+ * static final LogTemplate FILL = LogTemplate.of("fill {} px={.4} qty={}");
+ * ...
+ * eventLog.to(dstSet, Log.INFO, FILL).arg(id).arg(px).arg(qty);
+ * }</pre>
+ *
+ * <p> A slot is written {@code {}} and may name a format for numeric
+ * arguments: {@code {.N}} for {@link OptBuf#addFixed} with {@code N}
+ * decimals, {@code {0N}} for {@link OptBuf#addPadded} to width {@code N},
+ * {@code {x}} or {@code {xN}} for {@link OptBuf#addHex}, {@code {bN}} for
+ * {@link OptBuf#addBinary} and {@code {bytes}} for {@link OptBuf#addBytes}.
+ * Non-numeric arguments, and {@code double}s in integral slots, are appended
+ * as by {@link OptBuf#add}. The three characters <code>{{}</code> stand for
+ * a literal <code>{</code>.
+ *
+ * <p> Arguments are supplied in order through an {@link Args}, each
+ * {@link Args#arg} appending its value and the constant text up to the next
+ * slot. {@link OptBuf#NOOP} skips the template altogether.
+ */
+public final class LogTemplate {
+    private static final byte PLAIN = 0;
+    private static final byte FIXED = 1;
+    private static final byte PADDED = 2;
+    private static final byte HEX = 3;
+    private static final byte BINARY = 4;
+    private static final byte BYTES = 5;
+
+    private final String pattern;
+    private final String[] segments;
+    private final byte[] kinds;
+    private final int[] params;
+
+    private LogTemplate(String pattern, String[] segments, byte[] kinds, int[] params) {
+        this.pattern = pattern;
+        this.segments = segments;
+        this.kinds = kinds;
+        this.params = params;
+    }
+
+    public static LogTemplate of(String pattern) {
+        var segments = new ArrayList<String>();
+        var kinds = new ArrayList<Byte>();
+        var params = new ArrayList<Integer>();
+        var segment = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (c != '{') {
+                segment.append(c);
+                i++;
+            } else if (pattern.startsWith("{{}", i)) {
+                segment.append('{');
+                i += 3;
+            } else {
+                int end = pattern.indexOf('}', i);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed slot at " + i + ": " + pattern);
+                }
+                String spec = pattern.substring(i + 1, end);
+                segments.add(segment.toString());
+                segment.setLength(0);
+                kinds.add(kind(spec, pattern));
+                params.add(param(spec, pattern));
+                i = end + 1;
+            }
+        }
+        segments.add(segment.toString());
+
+        var kindArr = new byte[kinds.size()];
+        var paramArr = new int[params.size()];
+        for (int s = 0; s < kindArr.length; s++) {
+            kindArr[s] = kinds.get(s);
+            paramArr[s] = params.get(s);
+        }
+        return new LogTemplate(pattern, segments.toArray(new String[0]), kindArr, paramArr);
+    }
+
+    private static byte kind(String spec, String pattern) {
+        if (spec.isEmpty()) {
+            return PLAIN;
+        } else if (spec.equals("bytes")) {
+            return BYTES;
+        }
+        return switch (spec.charAt(0)) {
+            case '.' -> FIXED;
+            case '0' -> PADDED;
+            case 'x' -> HEX;
+            case 'b' -> BINARY;
+            default -> throw new IllegalArgumentException(
+                    "Unknown slot {" + spec + "}: " + pattern);
+        };
+    }
+
+    private static int param(String spec, String pattern) {
+        if (spec.isEmpty() || spec.equals("bytes")) {
+            return 0;
+        }
+        String digits = spec.substring(1);
+        if (digits.isEmpty() && spec.charAt(0) == 'x') {
+            return 1;
+        }
+        int n;
+        try {
+            n = Integer.parseInt(digits);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad slot {" + spec + "}: " + pattern, e);
+        }
+        if (spec.charAt(0) == '.') {
+            Formats.checkScale(n);
+        } else if (n < 1 || n > 64) {
+            throw new IllegalArgumentException("Bad slot {" + spec + "}: " + pattern);
+        }
+        return n;
+    }
+
+    /**
+     * The number of slots, which is how many {@link Args#arg} calls a use of
+     * this template takes.
+     */
+    public int slots() {
+        return kinds.length;
+    }
+
+    /**
+     * Appends this template's text up to its first slot to {@code buf}, and
+     * returns a new {@link Args} to supply the slots. A {@link LogBuf} hands
+     * out a reused one instead through {@link LogBuf#to(Enum, Log, LogTemplate)}.
+     */
+    public Args to(OptBuf buf) {
+        return buf == OptBuf.NOOP ? Args.NOOP : new Args().start(this, buf);
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    /**
+     * Supplies a template's arguments, in order, to the buffer it is being
+     * applied to. Supplying more arguments than the template has slots
+     * throws {@code IllegalStateException}; supplying fewer leaves the
+     * buffer holding the text up to the first unfilled slot.
+     */
+    public static final class Args {
+        static final Args NOOP = new Args();
+
+        private LogTemplate template;
+        private OptBuf buf = OptBuf.NOOP;
+        private int slot;
+
+        Args() {}
+
+        Args start(LogTemplate template, OptBuf buf) {
+            this.template = template;
+            this.buf = buf;
+            this.slot = 0;
+            segment(template.segments[0]);
+            return this;
+        }
+
+        /**
+         * The buffer being written to, for appending past the template's
+         * end.
+         */
+        public OptBuf buf() {
+            return buf;
+        }
+
+        public Args arg(long el) {
+            if (template == null) {
+                return this;
+            }
+            int p = template.params[check()];
+            switch (template.kinds[slot]) {
+                case FIXED -> buf.addFixed(el, p);
+                case PADDED -> buf.addPadded(el, p);
+                case HEX -> buf.addHex(el, p);
+                case BINARY -> buf.addBinary(el, p);
+                case BYTES -> buf.addBytes(el);
+                default -> buf.add(el);
+            }
+            return next();
+        }
+
+        public Args arg(double d) {
+            if (template == null) {
+                return this;
+            }
+            int s = check();
+            if (template.kinds[s] == FIXED) {
+                buf.addFixed(d, template.params[s]);
+            } else {
+                buf.add(d);
+            }
+            return next();
+        }
+
+        public Args arg(boolean b) {
+            if (template == null) {
+                return this;
+            }
+            check();
+            buf.add(b);
+            return next();
+        }
+
+        public Args arg(char c) {
+            if (template == null) {
+                return this;
+            }
+            check();
+            buf.add(c);
+            return next();
+        }
+
+        public Args arg(CharSequence chars) {
+            if (template == null) {
+                return this;
+            }
+            check();
+            buf.add(chars);
+            return next();
+        }
+
+        public Args arg(Object obj) {
+            if (template == null) {
+                return this;
+            }
+            check();
+            buf.add(obj);
+            return next();
+        }
+
+        private int check() {
+            if (slot == template.kinds.length) {
+                throw new IllegalStateException(
+                        "Template has " + slot + " slots: " + template.pattern);
+            }
+            return slot;
+        }
+
+        private Args next() {
+            segment(template.segments[++slot]);
+            return this;
+        }
+
+        private void segment(String text) {
+            if (!text.isEmpty()) {
+                buf.add(text);
+            }
+        }
+    }
+}
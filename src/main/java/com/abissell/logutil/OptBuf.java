@@ -15,10 +15,20 @@
  */
 package com.abissell.logutil;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import java.util.function.BiConsumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
 /**
  * An {@code OptBuf} is a text buffer which may or may not accumulate inputs
  * into an underlying {@link java.lang.StringBuilder StringBuilder}, intended
@@ -53,10 +63,23 @@ import java.util.function.Supplier;
  * {@link com.abissell.logutil.LogBuf LogBuf}, which provides an API for
  * caching {@code OptBuf}s by different output destinations and logging levels.
  *
+ * <p> {@code OptBuf.Direct} is an alternative to {@code OptBuf.Buf} which
+ * encodes its inputs as UTF-8 into a direct {@link java.nio.ByteBuffer
+ * ByteBuffer}, keeping large event buffers off the Java heap. Every
+ * {@code OptBuf} can render its contents into a log4j-supplied
+ * {@code StringBuilder} via {@link #formatTo(StringBuilder)} without first
+ * materializing a {@code String}.
+ *
+ * <p> {@code OptBuf.Fields} records its inputs as typed binary entries, with
+ * {@link LogKey}-named fields held as ids, and renders them as
+ * {@code key=value} text or JSON only when formatted. The text buffers render
+ * a keyed field immediately as {@code key=value}.
+ *
  * @author Andrew Bissell
  */
 
-public sealed interface OptBuf permits OptBuf.Buf, OptBuf.Noop {
+public sealed interface OptBuf extends StringBuilderFormattable
+        permits OptBuf.Buf, OptBuf.Direct, OptBuf.Fields, OptBuf.Noop {
 
     OptBuf add(boolean b);
     OptBuf add(byte b);
@@ -72,6 +95,205 @@ public sealed interface OptBuf permits OptBuf.Buf, OptBuf.Noop {
     OptBuf add(Supplier<String> supplier);
     <T> OptBuf add(Iterator<T> iter, Function<T, String> toStr);
     int length();
+    String getAndClear();
+    void clear();
+
+    /**
+     * Appends {@code d} rounded half away from zero to exactly
+     * {@code decimals} places, without an exponent, falling back to
+     * {@link #add(double)} for values whose scaled magnitude does not fit in
+     * a {@code long}.
+     */
+    default OptBuf addFixed(double d, int decimals) {
+        return Formats.fixed(this, d, decimals);
+    }
+
+    /**
+     * Appends {@code unscaled / 10^scale} with exactly {@code scale} decimal
+     * places, e.g. a price held as a count of ticks.
+     */
+    default OptBuf addScaled(long unscaled, int scale) {
+        return Formats.scaled(this, unscaled, scale);
+    }
+
+    /**
+     * Appends {@code el} left-padded with zeros to at least {@code width}
+     * digits, not counting any minus sign.
+     */
+    default OptBuf addPadded(long el, int width) {
+        return Formats.padded(this, el, width);
+    }
+
+    /**
+     * Appends {@code el} as unsigned lower-case hexadecimal.
+     */
+    default OptBuf addHex(long el) {
+        return Formats.hex(this, el, 1);
+    }
+
+    /**
+     * Appends {@code el} as unsigned lower-case hexadecimal, zero-padded to
+     * at least {@code minDigits} digits.
+     */
+    default OptBuf addHex(long el, int minDigits) {
+        return Formats.hex(this, el, minDigits);
+    }
+
+    /**
+     * Appends {@code el} as unsigned binary, zero-padded to at least
+     * {@code minDigits} digits.
+     */
+    default OptBuf addBinary(long el, int minDigits) {
+        return Formats.binary(this, el, minDigits);
+    }
+
+    /**
+     * Appends a byte count in binary units with one decimal place, e.g.
+     * {@code 512 B} or {@code 1.5 KiB}.
+     */
+    default OptBuf addBytes(long bytes) {
+        return Formats.bytes(this, bytes);
+    }
+
+    /**
+     * Records the current time, to be rendered when this buffer is formatted
+     * as an offset from the start of its event, e.g. {@code +123µs}. Only a
+     * {@link Fields} buffer with a {@link LogClock} keeps time, by reading
+     * one raw {@code long} from its clock; every other buffer ignores marks.
+     * {@link LogBuf} gives such buffers to the sets which have a
+     * {@link LogDstSet#clock()}.
+     */
+    default OptBuf mark() {
+        return this;
+    }
+
+    /**
+     * Appends the field {@code key=el}, preceded by a space unless this
+     * buffer is empty.
+     */
+    default OptBuf add(LogKey key, long el) {
+        return keyed(key).add(el);
+    }
+
+    default OptBuf add(LogKey key, double d) {
+        return keyed(key).add(d);
+    }
+
+    default OptBuf add(LogKey key, boolean b) {
+        return keyed(key).add(b);
+    }
+
+    default OptBuf add(LogKey key, char c) {
+        return keyed(key).add(c);
+    }
+
+    default OptBuf add(LogKey key, CharSequence chars) {
+        return keyed(key).add(chars);
+    }
+
+    private OptBuf keyed(LogKey key) {
+        if (length() > 0) {
+            add(' ');
+        }
+        return add(key.name()).add('=');
+    }
+
+    /**
+     * Appends {@code els[offset]} through {@code els[offset + length - 1]}
+     * with {@code separator} between them. If there are more than
+     * {@code maxElements}, only the first {@code maxElements} are appended,
+     * followed by {@code separator} and a marker such as
+     * <code>&hellip;(+12 more)</code>.
+     */
+    default OptBuf addAll(int[] els, int offset, int length, CharSequence separator,
+                          int maxElements) {
+        Objects.checkFromIndexSize(offset, length, els.length);
+        int n = Math.min(length, checkMax(maxElements));
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                add(separator);
+            }
+            add(els[offset + i]);
+        }
+        return more(n, length, separator);
+    }
+
+    default OptBuf addAll(long[] els, int offset, int length, CharSequence separator,
+                          int maxElements) {
+        Objects.checkFromIndexSize(offset, length, els.length);
+        int n = Math.min(length, checkMax(maxElements));
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                add(separator);
+            }
+            add(els[offset + i]);
+        }
+        return more(n, length, separator);
+    }
+
+    default OptBuf addAll(double[] els, int offset, int length, CharSequence separator,
+                          int maxElements) {
+        Objects.checkFromIndexSize(offset, length, els.length);
+        int n = Math.min(length, checkMax(maxElements));
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                add(separator);
+            }
+            add(els[offset + i]);
+        }
+        return more(n, length, separator);
+    }
+
+    /**
+     * Appends each of {@code items}, in iteration order, by passing it and
+     * this buffer to {@code writer}, with {@code separator} between them and
+     * the same cap as {@link #addAll(long[], int, int, CharSequence, int)}.
+     * Random access lists are walked by index rather than by iterator.
+     */
+    default <T> OptBuf addAll(Collection<? extends T> items, BiConsumer<? super T, OptBuf> writer,
+                              CharSequence separator, int maxElements) {
+        int max = checkMax(maxElements);
+        int size = items.size();
+        int n = 0;
+        if (items instanceof List<? extends T> list && items instanceof RandomAccess) {
+            n = Math.min(size, max);
+            for (int i = 0; i < n; i++) {
+                if (i > 0) {
+                    add(separator);
+                }
+                writer.accept(list.get(i), this);
+            }
+        } else {
+            for (T item : items) {
+                if (n == max) {
+                    break;
+                }
+                if (n > 0) {
+                    add(separator);
+                }
+                writer.accept(item, this);
+                n++;
+            }
+        }
+        return more(n, size, separator);
+    }
+
+    private static int checkMax(int maxElements) {
+        if (maxElements < 0) {
+            throw new IllegalArgumentException("maxElements must not be negative: " + maxElements);
+        }
+        return maxElements;
+    }
+
+    private OptBuf more(int written, int total, CharSequence separator) {
+        if (total > written) {
+            if (written > 0) {
+                add(separator);
+            }
+            add('\u2026').add("(+").add(total - written).add(" more)");
+        }
+        return this;
+    }
 
     record Buf(StringBuilder buf) implements OptBuf {
         @Override
@@ -155,11 +377,840 @@ public sealed interface OptBuf permits OptBuf.Buf, OptBuf.Noop {
             return buf.length();
         }
 
+        @Override
         public String getAndClear() {
             var str = buf.toString();
             buf.setLength(0);
             return str;
         }
+
+        @Override
+        public void clear() {
+            buf.setLength(0);
+        }
+
+        @Override
+        public void formatTo(StringBuilder buffer) {
+            buffer.append(buf);
+        }
+
+        public int capacity() {
+            return buf.capacity();
+        }
+
+        /**
+         * Shrinks the backing array to {@code capacity} chars, or to the
+         * current length if that is greater.
+         */
+        public void trim(int capacity) {
+            int len = buf.length();
+            if (capacity > len) {
+                buf.setLength(capacity);
+                buf.trimToSize();
+                buf.setLength(len);
+            } else {
+                buf.trimToSize();
+            }
+        }
+
+        /**
+         * Discards everything after the first {@code length} chars.
+         */
+        public void truncate(int length) {
+            if (length < buf.length()) {
+                buf.setLength(length);
+            }
+        }
+    }
+
+    /**
+     * An {@code OptBuf} which encodes its inputs as UTF-8 straight into a
+     * direct {@code ByteBuffer}. Booleans, chars and integral values are
+     * encoded without allocation; floating point values are rendered through
+     * a reused scratch {@code StringBuilder}. The buffer doubles in capacity
+     * when full and is otherwise reused across {@link #clear()}s, so a
+     * long-lived {@code LogBuf} keeps one off-heap region per slot.
+     *
+     * <p> {@link #length()} reports the number of encoded bytes.
+     *
+     * <p> There is no explicit way to free a {@code Direct} buffer: its
+     * off-heap memory is released by the garbage collector once the instance
+     * is unreachable, which may be long after, as it holds little heap. Hold
+     * on to and reuse instances rather than allocating them per event. A
+     * {@link LogBuf} does so, keeping one per enabled slot for its own
+     * lifetime and recycling those it hands to an {@link AsyncFlusher} as
+     * spares, so off-heap use is bounded by the number of {@code LogBuf}s
+     * and their buffers' high-water marks; {@link LogBuf.Limits} can trim
+     * the latter.
+     */
+    final class Direct implements OptBuf {
+        private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+        private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+        private static final byte[] MIN_LONG =
+                "-9223372036854775808".getBytes(StandardCharsets.US_ASCII);
+
+        private final StringBuilder scratch = new StringBuilder(32);
+        private ByteBuffer buf;
+        private char pendingHigh;
+
+        public Direct(int initialCapacity) {
+            this.buf = ByteBuffer.allocateDirect(Math.max(initialCapacity, 16));
+        }
+
+        @Override
+        public OptBuf add(boolean b) {
+            putAscii(b ? TRUE : FALSE);
+            return this;
+        }
+
+        @Override
+        public OptBuf add(byte b) {
+            return add((long) b);
+        }
+
+        @Override
+        public OptBuf add(char c) {
+            putChar(c);
+            return this;
+        }
+
+        @Override
+        public OptBuf add(short s) {
+            return add((long) s);
+        }
+
+        @Override
+        public OptBuf add(int i) {
+            return add((long) i);
+        }
+
+        @Override
+        public OptBuf add(long el) {
+            flushPending();
+            if (el == Long.MIN_VALUE) {
+                putAscii(MIN_LONG);
+                return this;
+            }
+            boolean negative = el < 0;
+            long abs = negative ? -el : el;
+            int digits = digits(abs);
+            int len = negative ? digits + 1 : digits;
+            ensure(len);
+            int pos = buf.position();
+            if (negative) {
+                buf.put(pos, (byte) '-');
+            }
+            for (int at = pos + len - 1; at >= pos + len - digits; at--) {
+                buf.put(at, (byte) ('0' + (int) (abs % 10)));
+                abs /= 10;
+            }
+            buf.position(pos + len);
+            return this;
+        }
+
+        @Override
+        public OptBuf add(float f) {
+            scratch.setLength(0);
+            return add(scratch.append(f));
+        }
+
+        @Override
+        public OptBuf add(double d) {
+            scratch.setLength(0);
+            return add(scratch.append(d));
+        }
+
+        @Override
+        public OptBuf add(CharSequence chars) {
+            for (int i = 0, n = chars.length(); i < n; i++) {
+                putChar(chars.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public OptBuf add(String str) {
+            return add((CharSequence) str);
+        }
+
+        @Override
+        public OptBuf add(Object obj) {
+            return add(obj.toString());
+        }
+
+        @Override
+        public OptBuf add(Supplier<String> supplier) {
+            return add(supplier.get());
+        }
+
+        @Override
+        public <T> OptBuf add(Iterator<T> iter, Function<T, String> toStr) {
+            iter.forEachRemaining(t -> add(toStr.apply(t)));
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return buf.position() + (pendingHigh != 0 ? 1 : 0);
+        }
+
+        @Override
+        public String getAndClear() {
+            flushPending();
+            var str = StandardCharsets.UTF_8.decode(buf.flip()).toString();
+            clear();
+            return str;
+        }
+
+        @Override
+        public void clear() {
+            buf.clear();
+            pendingHigh = 0;
+        }
+
+        /**
+         * Decodes the buffered UTF-8 into {@code buffer} without allocating.
+         */
+        @Override
+        public void formatTo(StringBuilder buffer) {
+            flushPending();
+            decode(buf, 0, buf.position(), buffer);
+        }
+
+        /**
+         * Decodes the UTF-8 in {@code src} between {@code from} and
+         * {@code end} into {@code out}, with a {@code '?'} for a character
+         * cut short at {@code end}.
+         */
+        static void decode(ByteBuffer src, int from, int end, StringBuilder out) {
+            int i = from;
+            while (i < end) {
+                int b = src.get(i++);
+                int more = b >= 0 ? 0 : (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2 : 3;
+                if (i + more > end) {
+                    out.append('?');
+                    return;
+                }
+                switch (more) {
+                    case 0 -> out.append((char) b);
+                    case 1 -> out.append((char) (((b & 0x1F) << 6) | (src.get(i++) & 0x3F)));
+                    case 2 -> {
+                        int c = ((b & 0x0F) << 12) | ((src.get(i++) & 0x3F) << 6);
+                        out.append((char) (c | (src.get(i++) & 0x3F)));
+                    }
+                    default -> {
+                        int cp = ((b & 0x07) << 18) | ((src.get(i++) & 0x3F) << 12);
+                        cp |= (src.get(i++) & 0x3F) << 6;
+                        out.appendCodePoint(cp | (src.get(i++) & 0x3F));
+                    }
+                }
+            }
+        }
+
+        public int capacity() {
+            return buf.capacity();
+        }
+
+        /**
+         * Replaces the backing buffer with one of {@code capacity} bytes, or
+         * of the current length if that is greater.
+         */
+        public void trim(int capacity) {
+            flushPending();
+            int size = Math.max(Math.max(capacity, buf.position()), 16);
+            if (size < buf.capacity()) {
+                var trimmed = ByteBuffer.allocateDirect(size);
+                trimmed.put(buf.flip());
+                buf = trimmed;
+            }
+        }
+
+        /**
+         * Discards everything after the first {@code length} bytes, backing
+         * up to the start of a multi-byte character cut short.
+         */
+        public void truncate(int length) {
+            flushPending();
+            int pos = buf.position();
+            if (length < pos) {
+                pos = length;
+                while (pos > 0 && (buf.get(pos) & 0xC0) == 0x80) {
+                    pos--;
+                }
+                buf.position(pos);
+            }
+        }
+
+        /**
+         * Copies the buffered bytes into {@code dst} without clearing them,
+         * for byte-oriented sinks which need no decoding.
+         */
+        public void copyTo(ByteBuffer dst) {
+            flushPending();
+            dst.put(dst.position(), buf, 0, buf.position());
+            dst.position(dst.position() + buf.position());
+        }
+
+        /**
+         * Copies the first {@code length} buffered bytes into {@code dst} at
+         * {@code index}, leaving {@code dst}'s position alone.
+         */
+        void copyTo(ByteBuffer dst, int index, int length) {
+            flushPending();
+            dst.put(index, buf, 0, Math.min(length, buf.position()));
+        }
+
+        private void putChar(char c) {
+            if (pendingHigh != 0) {
+                char high = pendingHigh;
+                pendingHigh = 0;
+                if (Character.isLowSurrogate(c)) {
+                    putCodePoint(Character.toCodePoint(high, c));
+                    return;
+                }
+                putByte('?');
+            }
+            if (c < 0x80) {
+                putByte(c);
+            } else if (c < 0x800) {
+                ensure(2);
+                buf.put((byte) (0xC0 | (c >> 6)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+            } else if (Character.isLowSurrogate(c)) {
+                putByte('?');
+            } else {
+                ensure(3);
+                buf.put((byte) (0xE0 | (c >> 12)));
+                buf.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+
+        private void putCodePoint(int cp) {
+            ensure(4);
+            buf.put((byte) (0xF0 | (cp >> 18)));
+            buf.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            buf.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            buf.put((byte) (0x80 | (cp & 0x3F)));
+        }
+
+        private void putByte(int b) {
+            ensure(1);
+            buf.put((byte) b);
+        }
+
+        private void putAscii(byte[] bytes) {
+            flushPending();
+            ensure(bytes.length);
+            buf.put(bytes);
+        }
+
+        private void flushPending() {
+            if (pendingHigh != 0) {
+                pendingHigh = 0;
+                putByte('?');
+            }
+        }
+
+        private void ensure(int n) {
+            if (buf.remaining() < n) {
+                int capacity = Math.max(buf.capacity() * 2, buf.position() + n);
+                var grown = ByteBuffer.allocateDirect(capacity);
+                grown.put(buf.flip());
+                buf = grown;
+            }
+        }
+
+        private static int digits(long abs) {
+            long limit = 10;
+            for (int d = 1; d < 19; d++) {
+                if (abs < limit) {
+                    return d;
+                }
+                limit *= 10;
+            }
+            return 19;
+        }
+    }
+
+    /**
+     * An {@code OptBuf} which records each input as a typed binary entry of
+     * two {@code long}s, a header packing the entry's type, {@link LogKey}
+     * id and format argument followed by the value itself, copying only text
+     * into a side buffer. Nothing is formatted until
+     * {@link #formatTo(StringBuilder)} or {@link #getAndClear()}, which render
+     * the entries in this buffer's {@link Format}: {@code KEY_VALUE} renders
+     * exactly what a {@code Buf} given the same calls would hold, and
+     * {@code JSON} renders an object whose {@code msg} member holds the
+     * unkeyed entries as text, followed by a member per keyed field.
+     *
+     * <p> Formatting of objects and suppliers is deferred too: an object
+     * whose type is registered with {@link DeferredTypes} is held by
+     * reference, or as a snapshot, and a supplier is held uncalled, until the
+     * buffer is rendered, perhaps by another thread. This moves the cost of
+     * {@code toString()} off the thread which filled the buffer. With
+     * {@code KEY_VALUE} a {@code Fields} buffer is thus a capture-only
+     * stand-in for a {@code Buf}.
+     *
+     * <p> Given a {@link LogClock}, a {@code Fields} buffer records a
+     * {@link #mark()} as the clock's raw reading, and renders it as an offset
+     * from its origin: the start of its {@link LogBuf}'s current event, which
+     * is that {@code LogBuf}'s first mark since it was last flushed, or for a
+     * buffer created directly, the buffer's own first mark.
+     *
+     * <p> {@link #length()} reports the approximate encoded size in bytes.
+     */
+    final class Fields implements OptBuf {
+        public enum Format { KEY_VALUE, JSON }
+
+        private static final int BOOL = 1;
+        private static final int CHAR = 2;
+        private static final int LONG = 3;
+        private static final int FLOAT = 4;
+        private static final int DOUBLE = 5;
+        private static final int TEXT = 6;
+        private static final int FIXED = 7;
+        private static final int SCALED = 8;
+        private static final int PADDED = 9;
+        private static final int HEX = 10;
+        private static final int BINARY = 11;
+        private static final int BYTES = 12;
+        private static final int OBJECT = 13;
+        private static final int SUPPLIER = 14;
+        private static final int MARK = 15;
+        private static final long NO_ORIGIN = Long.MIN_VALUE;
+
+        private final Format format;
+        private final LogClock clock;
+        private final LogBuf.EventStart eventStart;
+        private long origin = NO_ORIGIN;
+        private final StringBuilder chars = new StringBuilder();
+        private long[] entries = new long[32];
+        private int size;
+        private Object[] refs = new Object[8];
+        private int refCount;
+        private StringBuilder target;
+        private Buf out;
+
+        public Fields(Format format) {
+            this(format, null);
+        }
+
+        public Fields(Format format, LogClock clock) {
+            this(format, clock, null);
+        }
+
+        Fields(Format format, LogClock clock, LogBuf.EventStart eventStart) {
+            this.format = format;
+            this.clock = clock;
+            this.eventStart = eventStart;
+        }
+
+        public Format format() {
+            return format;
+        }
+
+        public LogClock clock() {
+            return clock;
+        }
+
+        @Override
+        public OptBuf add(boolean b) {
+            return put(BOOL, 0, 0, b ? 1 : 0);
+        }
+
+        @Override
+        public OptBuf add(byte b) {
+            return put(LONG, 0, 0, b);
+        }
+
+        @Override
+        public OptBuf add(char c) {
+            return put(CHAR, 0, 0, c);
+        }
+
+        @Override
+        public OptBuf add(short s) {
+            return put(LONG, 0, 0, s);
+        }
+
+        @Override
+        public OptBuf add(int i) {
+            return put(LONG, 0, 0, i);
+        }
+
+        @Override
+        public OptBuf add(long el) {
+            return put(LONG, 0, 0, el);
+        }
+
+        @Override
+        public OptBuf add(float f) {
+            return put(FLOAT, 0, 0, Float.floatToRawIntBits(f));
+        }
+
+        @Override
+        public OptBuf add(double d) {
+            return put(DOUBLE, 0, 0, Double.doubleToRawLongBits(d));
+        }
+
+        @Override
+        public OptBuf add(CharSequence chars) {
+            return text(0, chars);
+        }
+
+        @Override
+        public OptBuf add(String str) {
+            return text(0, str);
+        }
+
+        /**
+         * Holds on to {@code obj}, or a snapshot of it, to be formatted at
+         * flush if its type is registered with {@link DeferredTypes}, and
+         * otherwise formats it now.
+         */
+        @Override
+        public OptBuf add(Object obj) {
+            var captured = DeferredTypes.capture(obj);
+            return captured != null ? ref(OBJECT, captured) : add(obj.toString());
+        }
+
+        /**
+         * Holds on to {@code supplier} to be called at flush, possibly on
+         * another thread, so it must not depend on state which the caller
+         * goes on to change.
+         */
+        @Override
+        public OptBuf add(Supplier<String> supplier) {
+            return ref(SUPPLIER, supplier);
+        }
+
+        @Override
+        public <T> OptBuf add(Iterator<T> iter, Function<T, String> toStr) {
+            iter.forEachRemaining(t -> add(toStr.apply(t)));
+            return this;
+        }
+
+        @Override
+        public OptBuf addFixed(double d, int decimals) {
+            Formats.checkScale(decimals);
+            return put(FIXED, 0, decimals, Double.doubleToRawLongBits(d));
+        }
+
+        @Override
+        public OptBuf addScaled(long unscaled, int scale) {
+            Formats.checkScale(scale);
+            return put(SCALED, 0, scale, unscaled);
+        }
+
+        @Override
+        public OptBuf addPadded(long el, int width) {
+            return put(PADDED, 0, width, el);
+        }
+
+        @Override
+        public OptBuf addHex(long el) {
+            return put(HEX, 0, 1, el);
+        }
+
+        @Override
+        public OptBuf addHex(long el, int minDigits) {
+            return put(HEX, 0, minDigits, el);
+        }
+
+        @Override
+        public OptBuf addBinary(long el, int minDigits) {
+            return put(BINARY, 0, minDigits, el);
+        }
+
+        @Override
+        public OptBuf addBytes(long bytes) {
+            return put(BYTES, 0, 0, bytes);
+        }
+
+        @Override
+        public OptBuf mark() {
+            if (clock == null) {
+                return this;
+            }
+            long now = clock.nanos();
+            if (origin == NO_ORIGIN) {
+                origin = eventStart != null ? eventStart.at(now) : now;
+            }
+            return put(MARK, 0, 0, now);
+        }
+
+        @Override
+        public OptBuf add(LogKey key, long el) {
+            return put(LONG, key.id(), 0, el);
+        }
+
+        @Override
+        public OptBuf add(LogKey key, double d) {
+            return put(DOUBLE, key.id(), 0, Double.doubleToRawLongBits(d));
+        }
+
+        @Override
+        public OptBuf add(LogKey key, boolean b) {
+            return put(BOOL, key.id(), 0, b ? 1 : 0);
+        }
+
+        @Override
+        public OptBuf add(LogKey key, char c) {
+            return put(CHAR, key.id(), 0, c);
+        }
+
+        @Override
+        public OptBuf add(LogKey key, CharSequence chars) {
+            return text(key.id(), chars);
+        }
+
+        @Override
+        public int length() {
+            return size * Long.BYTES + chars.length() * Character.BYTES;
+        }
+
+        @Override
+        public String getAndClear() {
+            var str = new StringBuilder(size * 8 + chars.length());
+            formatTo(str);
+            clear();
+            return str.toString();
+        }
+
+        @Override
+        public void clear() {
+            size = 0;
+            chars.setLength(0);
+            Arrays.fill(refs, 0, refCount, null);
+            refCount = 0;
+            origin = NO_ORIGIN;
+        }
+
+        /**
+         * Renders the recorded entries into {@code buffer} in this buffer's
+         * {@link Format}. Reuses its formatting state across calls given the
+         * same {@code buffer}, as log4j's per-thread buffers are.
+         */
+        @Override
+        public void formatTo(StringBuilder buffer) {
+            if (buffer != target) {
+                target = buffer;
+                out = new Buf(buffer);
+            }
+            if (format == Format.JSON) {
+                renderJson(buffer);
+            } else {
+                renderKeyValue(buffer);
+            }
+        }
+
+        public int capacity() {
+            return entries.length * Long.BYTES + chars.capacity() * Character.BYTES;
+        }
+
+        /**
+         * Shrinks the backing arrays to about {@code capacity} bytes in all,
+         * but never below what the recorded entries occupy.
+         */
+        public void trim(int capacity) {
+            int words = Math.max(Math.max(size, 32), capacity / (2 * Long.BYTES));
+            if (words < entries.length) {
+                entries = Arrays.copyOf(entries, words);
+            }
+            int len = chars.length();
+            int keep = Math.max(len, capacity / (2 * Character.BYTES));
+            if (keep < chars.capacity()) {
+                chars.setLength(keep);
+                chars.trimToSize();
+                chars.setLength(len);
+            }
+        }
+
+        /**
+         * Discards trailing entries until {@link #length()} is at most
+         * {@code length}.
+         */
+        public void truncate(int length) {
+            while (size > 0 && length() > length) {
+                size -= 2;
+                long head = entries[size];
+                switch (tag(head)) {
+                    case TEXT -> chars.setLength((int) entries[size + 1]);
+                    case OBJECT, SUPPLIER -> refs[--refCount] = null;
+                    default -> {}
+                }
+            }
+        }
+
+        private OptBuf text(int key, CharSequence str) {
+            int start = chars.length();
+            chars.append(str);
+            return put(TEXT, key, chars.length() - start, start);
+        }
+
+        private OptBuf ref(int tag, Object ref) {
+            if (refCount == refs.length) {
+                refs = Arrays.copyOf(refs, refCount * 2);
+            }
+            refs[refCount] = ref;
+            return put(tag, 0, 0, refCount++);
+        }
+
+        private OptBuf put(int tag, int key, int arg, long value) {
+            if (size + 2 > entries.length) {
+                entries = Arrays.copyOf(entries, entries.length * 2);
+            }
+            entries[size] = ((long) tag << 56) | ((long) key << 32) | (arg & 0xFFFFFFFFL);
+            entries[size + 1] = value;
+            size += 2;
+            return this;
+        }
+
+        private static int tag(long head) {
+            return (int) (head >>> 56);
+        }
+
+        private static int key(long head) {
+            return (int) (head >>> 32) & 0xFFFFFF;
+        }
+
+        private void renderKeyValue(StringBuilder buffer) {
+            int start = buffer.length();
+            for (int i = 0; i < size; i += 2) {
+                long head = entries[i];
+                int key = key(head);
+                if (key != 0) {
+                    if (buffer.length() > start) {
+                        buffer.append(' ');
+                    }
+                    buffer.append(LogKey.name(key)).append('=');
+                }
+                renderValue(head, entries[i + 1]);
+            }
+        }
+
+        private void renderJson(StringBuilder buffer) {
+            buffer.append('{');
+            boolean first = true;
+            for (int i = 0; i < size; i += 2) {
+                if (key(entries[i]) == 0) {
+                    if (first) {
+                        buffer.append("\"msg\":\"");
+                        first = false;
+                    }
+                    long head = entries[i];
+                    switch (tag(head)) {
+                        case TEXT, CHAR -> escaped(buffer, head, entries[i + 1]);
+                        case OBJECT, SUPPLIER -> escape(buffer, deref(head, entries[i + 1]));
+                        default -> renderValue(head, entries[i + 1]);
+                    }
+                }
+            }
+            if (!first) {
+                buffer.append('"');
+            }
+            for (int i = 0; i < size; i += 2) {
+                long head = entries[i];
+                int key = key(head);
+                if (key == 0) {
+                    continue;
+                }
+                if (!first) {
+                    buffer.append(',');
+                }
+                first = false;
+                buffer.append('"');
+                escape(buffer, LogKey.name(key));
+                buffer.append("\":");
+                long value = entries[i + 1];
+                if (isJsonNumber(head, value)) {
+                    renderValue(head, value);
+                } else {
+                    buffer.append('"');
+                    switch (tag(head)) {
+                        case TEXT, CHAR -> escaped(buffer, head, value);
+                        default -> renderValue(head, value);
+                    }
+                    buffer.append('"');
+                }
+            }
+            buffer.append('}');
+        }
+
+        private static boolean isJsonNumber(long head, long value) {
+            return switch (tag(head)) {
+                case BOOL, LONG, SCALED -> true;
+                case FLOAT -> Float.isFinite(Float.intBitsToFloat((int) value));
+                case DOUBLE, FIXED -> Double.isFinite(Double.longBitsToDouble(value));
+                default -> false;
+            };
+        }
+
+        private void renderValue(long head, long value) {
+            int arg = (int) head;
+            switch (tag(head)) {
+                case BOOL -> out.add(value != 0);
+                case CHAR -> out.add((char) value);
+                case LONG -> out.add(value);
+                case FLOAT -> out.add(Float.intBitsToFloat((int) value));
+                case DOUBLE -> out.add(Double.longBitsToDouble(value));
+                case TEXT -> out.buf().append(chars, (int) value, (int) value + arg);
+                case FIXED -> Formats.fixed(out, Double.longBitsToDouble(value), arg);
+                case SCALED -> Formats.scaled(out, value, arg);
+                case PADDED -> Formats.padded(out, value, arg);
+                case HEX -> Formats.hex(out, value, arg);
+                case BINARY -> Formats.binary(out, value, arg);
+                case BYTES -> Formats.bytes(out, value);
+                case MARK -> Formats.elapsed(out, value - origin);
+                case OBJECT, SUPPLIER -> out.add(deref(head, value));
+                default -> throw new IllegalStateException("Unknown entry type " + tag(head));
+            }
+        }
+
+        private String deref(long head, long value) {
+            Object ref = refs[(int) value];
+            return tag(head) == SUPPLIER
+                    ? String.valueOf(((Supplier<?>) ref).get())
+                    : ref.toString();
+        }
+
+        private void escaped(StringBuilder buffer, long head, long value) {
+            if (tag(head) == CHAR) {
+                escape(buffer, (char) value);
+            } else {
+                for (int i = (int) value, end = i + (int) head; i < end; i++) {
+                    escape(buffer, chars.charAt(i));
+                }
+            }
+        }
+
+        private static void escape(StringBuilder buffer, CharSequence str) {
+            for (int i = 0, n = str.length(); i < n; i++) {
+                escape(buffer, str.charAt(i));
+            }
+        }
+
+        private static void escape(StringBuilder buffer, char c) {
+            switch (c) {
+                case '"' -> buffer.append("\\\"");
+                case '\\' -> buffer.append("\\\\");
+                case '\n' -> buffer.append("\\n");
+                case '\r' -> buffer.append("\\r");
+                case '\t' -> buffer.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        buffer.append("\\u00");
+                        buffer.append(Character.forDigit(c >> 4, 16));
+                        buffer.append(Character.forDigit(c & 0xF, 16));
+                    } else {
+                        buffer.append(c);
+                    }
+                }
+            }
+        }
     }
 
     record Noop() implements OptBuf {
@@ -202,10 +1253,77 @@ public sealed interface OptBuf permits OptBuf.Buf, OptBuf.Noop {
         @Override
         public <T> OptBuf add(Iterator<T> iter, Function<T, String> toStr) { return this; }
 
+        @Override
+        public OptBuf addFixed(double d, int decimals) { return this; }
+
+        @Override
+        public OptBuf addScaled(long unscaled, int scale) { return this; }
+
+        @Override
+        public OptBuf addPadded(long el, int width) { return this; }
+
+        @Override
+        public OptBuf addHex(long el) { return this; }
+
+        @Override
+        public OptBuf addHex(long el, int minDigits) { return this; }
+
+        @Override
+        public OptBuf addBinary(long el, int minDigits) { return this; }
+
+        @Override
+        public OptBuf addBytes(long bytes) { return this; }
+
+        @Override
+        public OptBuf mark() { return this; }
+
+        @Override
+        public OptBuf add(LogKey key, long el) { return this; }
+
+        @Override
+        public OptBuf add(LogKey key, double d) { return this; }
+
+        @Override
+        public OptBuf add(LogKey key, boolean b) { return this; }
+
+        @Override
+        public OptBuf add(LogKey key, char c) { return this; }
+
+        @Override
+        public OptBuf add(LogKey key, CharSequence chars) { return this; }
+
+        @Override
+        public OptBuf addAll(int[] els, int offset, int length, CharSequence separator,
+                             int maxElements) { return this; }
+
+        @Override
+        public OptBuf addAll(long[] els, int offset, int length, CharSequence separator,
+                             int maxElements) { return this; }
+
+        @Override
+        public OptBuf addAll(double[] els, int offset, int length, CharSequence separator,
+                             int maxElements) { return this; }
+
+        @Override
+        public <T> OptBuf addAll(Collection<? extends T> items,
+                                 BiConsumer<? super T, OptBuf> writer,
+                                 CharSequence separator, int maxElements) { return this; }
+
         @Override
         public int length() {
             return 0;
         }
+
+        @Override
+        public String getAndClear() {
+            return "";
+        }
+
+        @Override
+        public void clear() {}
+
+        @Override
+        public void formatTo(StringBuilder buffer) {}
     }
 
     static final Noop NOOP = new Noop();
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.time.Duration;
+
+/**
+ * A limit on how often statements may be logged to a {@link LogDstSet} at a
+ * given {@link Log} level, as returned by {@link LogDstSet#rateLimit(Log)}.
+ * Statements over the limit are discarded before any of their formatting is
+ * done: {@link Log#to(LogDstSet, String)} and its overloads return at once,
+ * and {@link LogBuf#to} hands out {@code OptBuf.NOOP}.
+ *
+ * <p> So that gaps stay visible, statements discarded are counted and the
+ * count logged on its own at the same level, e.g.
+ * {@code [suppressed 42 messages]}, {@code summaryInterval} after the first
+ * of them. A {@link LogBuf} decides once per slot and event: the first
+ * {@link LogBuf#to} for a set and level since the last flush takes a token,
+ * and later calls, including those on forked segments, share its outcome.
+ *
+ * @param permitsPerSecond the steady rate of a token bucket admitting
+ *                         statements, or 0 for no token bucket
+ * @param burst            how many statements the token bucket admits at
+ *                         once after a quiet period
+ * @param sampleEvery      admit only one in this many statements, before
+ *                         the token bucket is consulted; 1 admits them all
+ * @param summaryInterval  how long after the first statement discarded
+ *                         since the last report the next is logged
+ */
+public record RateLimit(double permitsPerSecond, long burst, int sampleEvery,
+        Duration summaryInterval) {
+    public static final Duration DEFAULT_SUMMARY_INTERVAL = Duration.ofSeconds(1);
+
+    public RateLimit {
+        if (!(permitsPerSecond >= 0.0)) {
+            throw new IllegalArgumentException(
+                    "permitsPerSecond must not be negative: " + permitsPerSecond);
+        }
+        if (permitsPerSecond > 0.0 && burst < 1) {
+            throw new IllegalArgumentException("burst must be positive: " + burst);
+        }
+        if (sampleEvery < 1) {
+            throw new IllegalArgumentException("sampleEvery must be positive: " + sampleEvery);
+        }
+        if (summaryInterval.isNegative()) {
+            throw new IllegalArgumentException("summaryInterval must not be negative");
+        }
+    }
+
+    /**
+     * A token bucket admitting {@code permits} statements per second on
+     * average and up to {@code burst} at once.
+     */
+    public static RateLimit perSecond(double permits, long burst) {
+        return new RateLimit(permits, burst, 1, DEFAULT_SUMMARY_INTERVAL);
+    }
+
+    /**
+     * Admits the first of every {@code n} statements.
+     */
+    public static RateLimit oneIn(int n) {
+        return new RateLimit(0.0, 0, n, DEFAULT_SUMMARY_INTERVAL);
+    }
+
+    public RateLimit withSummaryInterval(Duration interval) {
+        return new RateLimit(permitsPerSecond, burst, sampleEvery, interval);
+    }
+
+    static String summary(long suppressed) {
+        return "[suppressed " + suppressed + " messages]";
+    }
+}
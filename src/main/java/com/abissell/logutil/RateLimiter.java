@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of a {@link RateLimit} for one {@link LogDstSet} and level,
+ * shared by every thread logging there. All of it is held in
+ * {@code AtomicLong}s updated by CAS or fetch-and-add, so contending threads
+ * never block one another.
+ *
+ * <p> The token bucket is kept as the generic cell rate algorithm's single
+ * "theoretical arrival time": a statement is admitted if that time is no
+ * more than the burst tolerance ahead of now, and each admission pushes it
+ * on by one emission interval.
+ *
+ * <p> The first statement discarded after a report schedules the next one,
+ * {@code summaryInterval} later, on a shared daemon thread. Reports still
+ * pending when the JVM exits are lost.
+ */
+final class RateLimiter {
+    private static final Log[] LOGS = Log.values();
+    private static final ClassValue<RateLimiter[]> ENUM_LIMITERS = new ClassValue<>() {
+        @Override
+        protected RateLimiter[] computeValue(Class<?> type) {
+            var sets = (LogDstSet<?>[]) type.getEnumConstants();
+            var limiters = new RateLimiter[sets.length * LOGS.length];
+            for (int s = 0; s < sets.length; s++) {
+                for (Log log : LOGS) {
+                    var limit = sets[s].rateLimit(log);
+                    if (limit != null) {
+                        limiters[s * LOGS.length + log.ordinal()] =
+                                new RateLimiter(sets[s], log, limit);
+                    }
+                }
+            }
+            return limiters;
+        }
+    };
+
+    private final long interval;
+    private final long tolerance;
+    private final int sampleEvery;
+    private final long summaryNanos;
+    private final AtomicLong arrival = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicBoolean reportPending = new AtomicBoolean();
+    private final LogDstSet<?> set;
+    private final Log log;
+
+    private RateLimiter(LogDstSet<?> set, Log log, RateLimit limit) {
+        this.set = set;
+        this.log = log;
+        this.interval = limit.permitsPerSecond() > 0.0
+                ? Math.max(1L, (long) (1e9 / limit.permitsPerSecond()))
+                : 0L;
+        this.tolerance = interval * (limit.burst() - 1);
+        this.sampleEvery = limit.sampleEvery();
+        this.summaryNanos = limit.summaryInterval().toNanos();
+    }
+
+    /**
+     * The limiter for {@code set} at {@code log}, or {@code null} if it has
+     * no {@link RateLimit} there. Only enum sets are rate limited.
+     */
+    static RateLimiter of(LogDstSet<?> set, Log log) {
+        if (set instanceof Enum<?> e) {
+            var limiters = ENUM_LIMITERS.get(e.getDeclaringClass());
+            return limiters[e.ordinal() * LOGS.length + log.ordinal()];
+        }
+        return null;
+    }
+
+    /**
+     * Applies {@code set}'s limit at {@code log}, returning whether the
+     * statement is admitted.
+     */
+    static boolean acquire(LogDstSet<?> set, Log log) {
+        var limiter = of(set, log);
+        return limiter == null || limiter.acquire();
+    }
+
+    boolean acquire() {
+        if (admit()) {
+            return true;
+        }
+        suppressed.getAndIncrement();
+        if (!reportPending.get() && reportPending.compareAndSet(false, true)) {
+            Reports.EXECUTOR.schedule(this::report, summaryNanos, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
+
+    /*
+     * Logs the count of statements discarded since the last report. A
+     * statement discarded while this runs either is counted here or
+     * schedules the next report.
+     */
+    private void report() {
+        reportPending.set(false);
+        long count = suppressed.getAndSet(0L);
+        if (count > 0L) {
+            String msg = RateLimit.summary(count);
+            for (LogDst dst : set.set()) {
+                log.toDst(dst, msg);
+            }
+        }
+    }
+
+    private boolean admit() {
+        if (sampleEvery > 1 && count.getAndIncrement() % sampleEvery != 0) {
+            return false;
+        }
+        if (interval == 0L) {
+            return true;
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long at = arrival.get();
+            long start = at == Long.MIN_VALUE ? now : Math.max(at, now);
+            if (start - now > tolerance) {
+                return false;
+            }
+            if (arrival.compareAndSet(at, start + interval)) {
+                return true;
+            }
+        }
+    }
+
+    // Holds the reporting thread, started by the first discarded statement
+    private static final class Reports {
+        static final ScheduledExecutorService EXECUTOR =
+                Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform()
+                        .daemon()
+                        .name("logutil-rate-limit-reports")
+                        .factory());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Abbreviates repeated stack traces in buffered log output. Each
+ * {@code Throwable} flushed from a {@link LogBuf} to a set whose
+ * {@link LogDstSet#stackTraceDedup()} returns this cache is fingerprinted by
+ * the classes and stack frames of it and its causes, ignoring messages. The
+ * first time a fingerprint is seen the trace is logged in full, with
+ * {@code [stack trace #id]} appended to the event's text; afterwards the
+ * event is logged without a {@code Throwable}, its text ending instead in a
+ * reference such as
+ * {@code [java.io.IOException: reset, stack trace same as #3 (seen 12 times)]}.
+ * A {@code Throwable} with suppressed exceptions, anywhere in its cause
+ * chain, is always logged in full and without an id, since they differ from
+ * one event to the next.
+ *
+ * <p> Fingerprints are remembered in a table of {@code maxEntries} slots,
+ * each with the classes and frames it was computed from, so that a trace is
+ * only abbreviated if it matches exactly. A trace whose slot holds a
+ * different one replaces it, and is logged in full with a new id.
+ */
+public final class StackTraceDedup {
+    private static final int MAX_CAUSES = 16;
+
+    /*
+     * The classes and stack frames of a Throwable and its causes.
+     */
+    private record Trace(Class<?>[] classes, StackTraceElement[][] frames, boolean suppressed) {
+        static Trace of(Throwable thrown) {
+            int causes = 0;
+            boolean suppressed = false;
+            for (Throwable t = thrown; t != null && causes < MAX_CAUSES; t = t.getCause()) {
+                causes++;
+                suppressed |= t.getSuppressed().length > 0;
+            }
+            var classes = new Class<?>[causes];
+            var frames = new StackTraceElement[causes][];
+            Throwable t = thrown;
+            for (int c = 0; c < causes; c++, t = t.getCause()) {
+                classes[c] = t.getClass();
+                frames[c] = t.getStackTrace();
+            }
+            return new Trace(classes, frames, suppressed);
+        }
+
+        long fingerprint() {
+            long h = 1125899906842597L;
+            for (int c = 0; c < classes.length; c++) {
+                h = 31 * h + classes[c].getName().hashCode();
+                for (StackTraceElement frame : frames[c]) {
+                    h = 31 * h + frame.getClassName().hashCode();
+                    h = 31 * h + frame.getMethodName().hashCode();
+                    h = 31 * h + frame.getLineNumber();
+                }
+            }
+            return h;
+        }
+
+        boolean sameAs(Trace other) {
+            return Arrays.equals(classes, other.classes) && Arrays.deepEquals(frames, other.frames);
+        }
+    }
+
+    private static final class Seen {
+        final long id;
+        final long fingerprint;
+        final Trace trace;
+        final AtomicLong count = new AtomicLong(1L);
+
+        Seen(long id, long fingerprint, Trace trace) {
+            this.id = id;
+            this.fingerprint = fingerprint;
+            this.trace = trace;
+        }
+    }
+
+    private final AtomicReferenceArray<Seen> slots;
+    private final AtomicLong ids = new AtomicLong();
+
+    public StackTraceDedup(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+        }
+        this.slots = new AtomicReferenceArray<>(maxEntries);
+    }
+
+    /**
+     * Forgets every fingerprint, so that each trace is next logged in full.
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    /**
+     * Appends {@code thrown}'s id or reference to {@code buf}, and returns
+     * the {@code Throwable} to log with it: {@code thrown} itself, or
+     * {@code null} if its trace has been logged before.
+     */
+    Throwable apply(OptBuf buf, Throwable thrown) {
+        var trace = Trace.of(thrown);
+        if (trace.suppressed()) {
+            return thrown;
+        }
+        long fingerprint = trace.fingerprint();
+        int slot = slot(fingerprint);
+        var seen = slots.get(slot);
+        if (seen == null || seen.fingerprint != fingerprint || !seen.trace.sameAs(trace)) {
+            var first = new Seen(ids.incrementAndGet(), fingerprint, trace);
+            if (slots.compareAndSet(slot, seen, first)) {
+                buf.add(" [stack trace #").add(first.id).add(']');
+            }
+            return thrown;
+        }
+        long count = seen.count.incrementAndGet();
+        buf.add(" [").add(thrown.toString())
+                .add(", stack trace same as #").add(seen.id)
+                .add(" (seen ").add(count).add(" times)]");
+        return null;
+    }
+
+    private int slot(long fingerprint) {
+        long h = fingerprint ^ (fingerprint >>> 32);
+        return (int) Long.remainderUnsigned(h ^ (h >>> 16), slots.length());
+    }
+
+    static long fingerprint(Throwable thrown) {
+        return Trace.of(thrown).fingerprint();
+    }
+}
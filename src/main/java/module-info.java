@@ -22,4 +22,5 @@ module com.abissell.logutil {
 
     requires transitive org.apache.logging.log4j;
     requires transitive org.apache.logging.log4j.core;
+    requires jdk.jfr;
 }
@@ -19,17 +19,30 @@ package com.abissell.logutil;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
+import java.time.Duration;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.IntStream;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.LoggingException;
+import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.core.appender.ConsoleAppender;
 import org.apache.logging.log4j.core.config.Configurator;
 import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.spi.ExtendedLogger;
+import org.apache.logging.log4j.spi.ExtendedLoggerWrapper;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -37,6 +50,10 @@ import org.junit.jupiter.api.Test;
 public class EventLogTest {
     static { Log.setLevel(Level.INFO); }
 
+    private static final StackTraceDedup STACK_TRACES = new StackTraceDedup(16);
+    private static long clockNanos;
+    private static final LogClock CLOCK = () -> clockNanos;
+
     private final ByteArrayOutputStream outContent = new ByteArrayOutputStream();
     private final PrintStream originalOut = System.out;
     private final ByteArrayOutputStream errContent = new ByteArrayOutputStream();
@@ -50,7 +67,8 @@ public class EventLogTest {
         var builder = ConfigurationBuilderFactory.newConfigurationBuilder();
 
         var appenderBuilder = builder.newAppender("Stdout", "CONSOLE")
-            .addAttribute("target", ConsoleAppender.Target.SYSTEM_OUT);
+            .addAttribute("target", ConsoleAppender.Target.SYSTEM_OUT)
+            .addAttribute("follow", true);
         appenderBuilder.add(builder.newLayout("PatternLayout")
                 .addAttribute("pattern", "%msg%n%throwable"));
         builder.add(appenderBuilder);
@@ -60,7 +78,8 @@ public class EventLogTest {
                 .addAttribute("additivity", false));
 
         appenderBuilder = builder.newAppender("Stderr", "CONSOLE")
-            .addAttribute("target", ConsoleAppender.Target.SYSTEM_ERR);
+            .addAttribute("target", ConsoleAppender.Target.SYSTEM_ERR)
+            .addAttribute("follow", true);
         appenderBuilder.add(builder.newLayout("PatternLayout")
                 .addAttribute("pattern", "%msg%n%throwable"));
         builder.add(appenderBuilder);
@@ -111,6 +130,573 @@ public class EventLogTest {
         assertEquals("", outContent.toString());
     }
 
+    @Test
+    public void testReusableMessageFlush() {
+        var logBuf = LogBuf.create(DstSet.values(), LogBuf.FlushMode.REUSABLE_MESSAGE);
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT, Log.ERROR).add("hello1").add(2);
+            buf.to(DstSet.OUT_ERR, Log.INFO).add("outerr");
+        }
+
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.ERR, Log.WARN).add("err").add('!');
+        }
+
+        assertEquals("hello12\nouterr\n", outContent.toString());
+        assertEquals("outerr\nerr!\n", errContent.toString());
+    }
+
+    @Test
+    public void testOffHeapFlush() {
+        for (var mode : LogBuf.FlushMode.values()) {
+            var logBuf = LogBuf.create(DstSet.values(), mode);
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(DstSet.OUT_DIRECT, Log.INFO)
+                    .add("px=").add(-101L).add(' ').add(Long.MIN_VALUE)
+                    .add(" é€𝄞 ").add(true).add(1.5d);
+            }
+        }
+        var expected = "px=-101 -9223372036854775808 é€𝄞 true1.5\n";
+        assertEquals(expected + expected, outContent.toString());
+    }
+
+    @Test
+    public void testAsyncFlush() {
+        var expected = new StringBuilder();
+        try (var flusher = AsyncFlusher.start(Thread.ofVirtual().factory(), 4,
+                AsyncFlusher.Backpressure.BLOCK)) {
+            var logBuf = LogBuf.create(DstSet.values(), flusher);
+            for (int i = 0; i < 20; i++) {
+                try (var buf = new EventLog<>(logBuf)) {
+                    buf.to(DstSet.OUT, Log.INFO).add("event").add(i);
+                    buf.to(DstSet.ERR, Log.DEBUG).add("dropped");
+                }
+                expected.append("event").append(i).append('\n');
+            }
+        }
+        assertEquals(expected.toString(), outContent.toString());
+        assertEquals("", errContent.toString());
+    }
+
+    @Test
+    public void testAsyncFlushDropLowestLevel() throws InterruptedException {
+        var started = new CountDownLatch(1);
+        var flusher = AsyncFlusher.start(stalled(started), 4,
+                AsyncFlusher.Backpressure.DROP_LOWEST_LEVEL);
+        var logBuf = LogBuf.create(DstSet.values(), flusher);
+        // INFO keeps 2 of the 4 slots free for higher levels; ERROR may fill the ring
+        for (int i = 0; i < 5; i++) {
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(DstSet.OUT, Log.INFO).add("info").add(i);
+            }
+        }
+        for (int i = 0; i < 3; i++) {
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(DstSet.OUT, Log.ERROR).add("error").add(i);
+            }
+        }
+        assertEquals(4, flusher.dropped());
+        started.countDown();
+        flusher.close();
+        assertEquals("info0\ninfo1\nerror0\nerror1\n", outContent.toString());
+    }
+
+    @Test
+    public void testAsyncFlushGrow() throws InterruptedException {
+        var started = new CountDownLatch(1);
+        var expected = new StringBuilder();
+        try (var flusher = AsyncFlusher.start(stalled(started), 2,
+                AsyncFlusher.Backpressure.GROW)) {
+            var logBuf = LogBuf.create(DstSet.values(), flusher);
+            for (int i = 0; i < 10; i++) {
+                try (var buf = new EventLog<>(logBuf)) {
+                    buf.to(DstSet.OUT, Log.INFO).add("event").add(i);
+                }
+                expected.append("event").append(i).append('\n');
+            }
+            started.countDown();
+            assertEquals(0, flusher.dropped());
+        }
+        assertEquals(expected.toString(), outContent.toString());
+    }
+
+    @Test
+    public void testAsyncFlushCloseWhilePublishing() throws InterruptedException {
+        var flusher = AsyncFlusher.start(Thread.ofVirtual().factory(), 8,
+                AsyncFlusher.Backpressure.BLOCK);
+        var producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            var logBuf = LogBuf.create(DstSet.values(), flusher);
+            producers[p] = Thread.ofPlatform().start(() -> {
+                for (int i = 0; i < 2_000; i++) {
+                    try (var buf = new EventLog<>(logBuf)) {
+                        buf.to(DstSet.OUT, Log.INFO).add("event");
+                    }
+                }
+            });
+        }
+        Thread.sleep(5);
+        flusher.close();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        long logged = outContent.toString().lines().count();
+        assertEquals(producers.length * 2_000L, logged + flusher.dropped());
+    }
+
+    @Test
+    public void testAsyncFlushSurvivesFailingDestination() {
+        var flusher = AsyncFlusher.start(Thread.ofVirtual().factory(), 4,
+                AsyncFlusher.Backpressure.BLOCK);
+        var logBuf = LogBuf.create(FailingSet.values(), flusher);
+        for (int i = 0; i < 3; i++) {
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(FailingSet.BOTH, Log.INFO).add("event").add(i);
+            }
+        }
+        flusher.close();
+        assertEquals(3, flusher.failed());
+        assertEquals("event0\nevent1\nevent2\n", outContent.toString());
+    }
+
+    private static ThreadFactory stalled(CountDownLatch started) {
+        return task -> Thread.ofPlatform().unstarted(() -> {
+            try {
+                started.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            task.run();
+        });
+    }
+
+    @Test
+    public void testSetLevelAtRuntime() {
+        var logBuf = LogBuf.create(DstSet.values());
+        assertSame(OptBuf.NOOP, logBuf.to(DstSet.OUT, Log.DEBUG));
+        try {
+            Log.setLevel(Level.DEBUG);
+            assertTrue(Log.DEBUG.isEnabled());
+            assertTrue(logBuf.to(DstSet.OUT, Log.DEBUG) instanceof OptBuf.Buf);
+
+            Log.setLevel(Level.WARN);
+            assertFalse(Log.INFO.isEnabled());
+            assertSame(OptBuf.NOOP, logBuf.to(DstSet.OUT, Log.INFO));
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(DstSet.OUT, Log.INFO).add("info-msg");
+                buf.to(DstSet.OUT, Log.WARN).add("warn-msg");
+            }
+            assertEquals("warn-msg\n", outContent.toString());
+        } finally {
+            Log.setLevel(Level.INFO);
+        }
+        assertTrue(logBuf.to(DstSet.OUT, Log.INFO) instanceof OptBuf.Buf);
+        assertSame(OptBuf.NOOP, logBuf.to(DstSet.OUT, Log.DEBUG));
+    }
+
+    @Test
+    public void testPerDestinationLevels() {
+        var logBuf = LogBuf.create(DstSet.values());
+        try {
+            Log.setLevel(Level.DEBUG);
+            assertFalse(Log.DEBUG.isEnabled(DstSet.OUT_ERR));
+            assertSame(OptBuf.NOOP, logBuf.to(DstSet.OUT, Log.DEBUG));
+
+            Configurator.setLevel("StdErr", Level.DEBUG);
+            // Noticed at the next flush, not per statement
+            assertFalse(Log.DEBUG.isEnabled(DstSet.OUT_ERR));
+            logBuf.flush();
+            assertTrue(Log.DEBUG.isEnabled(DstSet.OUT_ERR));
+            assertTrue(logBuf.to(DstSet.ERR, Log.DEBUG) instanceof OptBuf.Buf);
+            assertSame(OptBuf.NOOP, logBuf.to(DstSet.OUT, Log.DEBUG));
+
+            Log.DEBUG.to(DstSet.OUT_ERR, "debug-msg");
+            assertEquals("", outContent.toString());
+            assertEquals("debug-msg\n", errContent.toString());
+        } finally {
+            Configurator.setLevel("StdErr", Level.INFO);
+            Log.setLevel(Level.INFO);
+        }
+        assertFalse(Log.DEBUG.isEnabled(DstSet.ERR));
+    }
+
+    @Test
+    public void testCoalescedFlush() {
+        var logBuf = LogBuf.create(DstSet.values(), LogBuf.FlushMode.COALESCE_BY_DST);
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT, Log.ERROR).add("hello1").add("hello2");
+            buf.to(DstSet.ERR, Log.ERROR).add("err1");
+            buf.to(DstSet.OUT_ERR, Log.ERROR).add("outerr");
+            buf.to(DstSet.OUT_ERR, Log.INFO).add("info");
+        }
+
+        assertEquals("info\nhello1hello2\nouterr\n", outContent.toString());
+        assertEquals("info\nerr1\nouterr\n", errContent.toString());
+    }
+
+    @Test
+    public void testLimits() {
+        var capped = LogBuf.create(DstSet.values(), LogBuf.FlushMode.STRING,
+                new LogBuf.Limits(0, 10, 64));
+        try (var buf = new EventLog<>(capped)) {
+            buf.to(DstSet.OUT, Log.INFO).add("0123456789abc");
+            buf.to(DstSet.OUT, Log.INFO).add("dropped");
+        }
+        assertEquals("0123456789" + LogBuf.Limits.TRUNCATED + "\n", outContent.toString());
+
+        outContent.reset();
+        try (var buf = new EventLog<>(capped)) {
+            buf.to(DstSet.OUT, Log.INFO).add("0123456789abc");
+        }
+        try (var buf = new EventLog<>(capped)) {
+            buf.to(DstSet.OUT, Log.INFO).add("0123456789");
+            buf.fork(0).to(DstSet.OUT, Log.INFO).add("forked");
+        }
+        assertEquals(("0123456789" + LogBuf.Limits.TRUNCATED + "\n").repeat(2),
+                outContent.toString());
+        assertThrows(IllegalArgumentException.class, () -> new LogBuf.Limits(0, -1, 64));
+
+        outContent.reset();
+        var autoFlushed = LogBuf.create(DstSet.values(), LogBuf.FlushMode.STRING,
+                new LogBuf.Limits(5, 0, 64));
+        try (var buf = new EventLog<>(autoFlushed)) {
+            buf.to(DstSet.OUT, Log.INFO).add("abcdef");
+            buf.to(DstSet.OUT, Log.INFO).add("gh");
+            buf.to(DstSet.OUT, Log.INFO).add("ij");
+        }
+        assertEquals("abcdef\nghij\n", outContent.toString());
+    }
+
+    @Test
+    public void testFlightRecorder() {
+        var logBuf = LogBuf.create(DstSet.values(), LogBuf.FlushMode.STRING, LogBuf.Limits.NONE,
+                new LogBuf.Recorder(Log.INFO, Log.WARN, 2, Duration.ZERO));
+        assertFalse(Log.DEBUG.isEnabled());
+        for (int i = 1; i <= 3; i++) {
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(DstSet.OUT, Log.DEBUG).add("d").add(i);
+                if (i == 1) {
+                    buf.to(DstSet.OUT, Log.INFO).add("i1");
+                }
+            }
+        }
+        assertEquals("i1\n", outContent.toString());
+
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT, Log.DEBUG).add("d4");
+            buf.to(DstSet.ERR, Log.DEBUG).add("err-d4");
+            buf.to(DstSet.OUT, Log.WARN).add("w");
+        }
+        assertEquals("i1\nd2\nd3\nd4\nw\n", outContent.toString());
+        assertEquals("", errContent.toString());
+
+        outContent.reset();
+        logBuf.dump();
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT, Log.DEBUG).add("d6");
+        }
+        logBuf.dump();
+        assertEquals("d6\n", outContent.toString());
+        assertEquals("err-d4\n", errContent.toString());
+    }
+
+    @Test
+    public void testRateLimits() throws InterruptedException {
+        for (int i = 0; i <= 6; i++) {
+            Log.WARN.to(DstSet.OUT_SAMPLED, "m" + i);
+        }
+        Log.INFO.to(DstSet.OUT_SAMPLED, "unlimited");
+        assertEquals("m0\nm3\nm6\nunlimited\n", outContent.toString());
+        awaitOutput("m0\nm3\nm6\nunlimited\n[suppressed 4 messages]\n");
+
+        // One decision per event, shared by later calls and forked segments
+        outContent.reset();
+        var logBuf = LogBuf.create(DstSet.values());
+        for (int i = 0; i <= 3; i++) {
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(DstSet.OUT_SAMPLED, Log.WARN).add("b").add(i);
+                buf.to(DstSet.OUT_SAMPLED, Log.WARN).add('+');
+                buf.fork(0).to(DstSet.OUT_SAMPLED, Log.WARN).add('f');
+            }
+        }
+        assertEquals("b2+f\n", outContent.toString());
+        awaitOutput("b2+f\n[suppressed 3 messages]\n");
+    }
+
+    private void awaitOutput(String expected) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!outContent.toString().equals(expected) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, outContent.toString());
+    }
+
+    @Test
+    public void testGroupCommit() {
+        var limits = new GroupCommit.Limits(1 << 20, 3, Duration.ofMinutes(1));
+        try (var groupCommit = GroupCommit.start(Thread.ofVirtual().factory(), limits)) {
+            var logBuf = LogBuf.create(DstSet.values(), groupCommit);
+            for (int i = 0; i < 4; i++) {
+                try (var buf = new EventLog<>(logBuf)) {
+                    buf.to(DstSet.OUT_ERR, Log.INFO).add("e").add(i);
+                }
+            }
+            assertEquals("e0\ne1\ne2\n", outContent.toString());
+            assertEquals("e0\ne1\ne2\n", errContent.toString());
+        }
+        assertEquals("e0\ne1\ne2\ne3\n", outContent.toString());
+    }
+
+    @Test
+    public void testThrowables() {
+        var logBuf = LogBuf.create(DstSet.values(), LogBuf.FlushMode.REUSABLE_MESSAGE);
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT, Log.WARN, new IllegalStateException("boom")).add("failed");
+        }
+        var out = outContent.toString();
+        assertTrue(out.startsWith("failed\njava.lang.IllegalStateException: boom\n"));
+        assertTrue(out.contains("at com.abissell.logutil.EventLogTest.testThrowables"));
+
+        outContent.reset();
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT, Log.WARN, new IllegalStateException("first")).add("several");
+            buf.to(DstSet.OUT, Log.WARN, new IllegalArgumentException("second"));
+            buf.fork(0).to(DstSet.OUT, Log.WARN, new UnsupportedOperationException("forked"));
+        }
+        out = outContent.toString();
+        assertTrue(out.startsWith("several\njava.lang.IllegalStateException: first\n"));
+        assertTrue(out.contains("Suppressed: java.lang.IllegalArgumentException: second"));
+        assertTrue(out.contains("Suppressed: java.lang.UnsupportedOperationException: forked"));
+
+        outContent.reset();
+        for (int i = 0; i < 3; i++) {
+            try (var buf = new EventLog<>(logBuf)) {
+                var retry = new IllegalStateException("retry " + i);
+                buf.to(DstSet.OUT_DEDUP, Log.WARN, retry).add("r").add(i);
+            }
+        }
+        var lines = outContent.toString().split("\n");
+        assertEquals("r0 [stack trace #1]", lines[0]);
+        assertEquals("java.lang.IllegalStateException: retry 0", lines[1]);
+        assertEquals("r2 [java.lang.IllegalStateException: retry 2,"
+                + " stack trace same as #1 (seen 3 times)]", lines[lines.length - 1]);
+
+        // Suppressed exceptions differ per event, so such traces are never abbreviated
+        outContent.reset();
+        for (int i = 0; i < 2; i++) {
+            try (var buf = new EventLog<>(logBuf)) {
+                var retry = new IllegalStateException("retry " + i);
+                buf.to(DstSet.OUT_DEDUP, Log.WARN, retry).add("s").add(i);
+                buf.to(DstSet.OUT_DEDUP, Log.WARN, new IllegalArgumentException("cause " + i));
+            }
+        }
+        out = outContent.toString();
+        assertTrue(out.contains("Suppressed: java.lang.IllegalArgumentException: cause 0"));
+        assertTrue(out.contains("Suppressed: java.lang.IllegalArgumentException: cause 1"));
+        assertFalse(out.contains("same as"));
+    }
+
+    @Test
+    public void testScopedEventLog() throws InterruptedException {
+        assertSame(OptBuf.NOOP, EventLog.current(DstSet.class).to(DstSet.OUT, Log.INFO));
+
+        var pool = LogBufPool.create(DstSet.values(), 4);
+        pool.run(() -> {
+            EventLog.current(DstSet.class).to(DstSet.OUT, Log.INFO).add("in scope");
+            assertEquals("", outContent.toString());
+        });
+        assertEquals("in scope\n", outContent.toString());
+
+        outContent.reset();
+        var threads = new Thread[100];
+        for (int t = 0; t < threads.length; t++) {
+            int id = t;
+            threads[t] = Thread.ofVirtual().start(() -> pool.run(() ->
+                    EventLog.current(DstSet.class).to(DstSet.OUT, Log.INFO).add("req").add(id)));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length, outContent.toString().lines().count());
+
+        // Subtasks inherit the binding but log to segments of the event
+        outContent.reset();
+        pool.call(() -> {
+            var event = EventLog.current(DstSet.class);
+            event.to(DstSet.OUT, Log.INFO).add("parent");
+            try (var scope = StructuredTaskScope.open()) {
+                scope.fork(() -> {
+                    EventLog.current(DstSet.class).to(DstSet.OUT, Log.INFO).add(" inherited");
+                });
+                scope.fork(() -> {
+                    event.fork(0).to(DstSet.OUT, Log.INFO).add(" forked");
+                });
+                scope.join();
+            }
+            return null;
+        });
+        assertEquals("parent forked inherited\n", outContent.toString());
+    }
+
+    @Test
+    public void testForkedSegments() {
+        var logBuf = LogBuf.create(DstSet.values());
+        for (int round = 0; round < 2; round++) {
+            try (var event = new EventLog<>(logBuf)) {
+                event.to(DstSet.OUT_ERR, Log.INFO).add("parts:");
+                IntStream.range(0, 16).parallel().forEach(i ->
+                        event.fork(i).to(DstSet.OUT_ERR, Log.INFO).add(' ').add(i));
+            }
+        }
+        String parts = "parts: 0 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15\n";
+        assertEquals(parts + parts, outContent.toString());
+        assertEquals(parts + parts, errContent.toString());
+    }
+
+    @Test
+    public void testSpecializedFlush() {
+        for (var mode : LogBuf.FlushMode.values()) {
+            var logBuf = LogBuf.createSpecialized(DstSet.values(), mode);
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(DstSet.OUT_ERR, Log.INFO).add("both");
+                buf.to(DstSet.ERR, Log.WARN).add("err");
+                buf.to(DstSet.OUT, Log.DEBUG).add("disabled");
+            }
+            assertEquals("both\n", outContent.toString());
+            assertEquals(mode == LogBuf.FlushMode.COALESCE_BY_DST ? "both\nerr\n" : "err\nboth\n",
+                    errContent.toString());
+            outContent.reset();
+            errContent.reset();
+        }
+    }
+
+    @Test
+    public void testDirtySlotsAcrossWords() {
+        // 12 sets of 6 levels: W10 at WARN and ERROR are slots 63 and 64
+        var logBuf = LogBuf.create(WideSet.values());
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(WideSet.W0, Log.INFO).add("w0");
+            buf.to(WideSet.W10, Log.WARN).add("w10-warn");
+            buf.to(WideSet.W10, Log.ERROR).add("w10-error");
+            buf.to(WideSet.W11, Log.INFO).add("w11");
+        }
+        assertEquals("w0\nw10-warn\nw10-error\nw11\n", outContent.toString());
+
+        outContent.reset();
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(WideSet.W10, Log.ERROR).add("only");
+        }
+        assertEquals("only\n", outContent.toString());
+
+        // A buffer held across a flush is still logged at the next
+        outContent.reset();
+        var held = logBuf.to(WideSet.W11, Log.INFO);
+        logBuf.flush();
+        held.add("late");
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(WideSet.W0, Log.INFO).add("next");
+        }
+        assertEquals("next\nlate\n", outContent.toString());
+    }
+
+    @Test
+    public void testSpecializedFlushSharesDispatch() {
+        var first = LogBuf.createSpecialized(MovingSet.values(), LogBuf.FlushMode.STRING);
+        var second = LogBuf.createSpecialized(MovingSet.values(), LogBuf.FlushMode.STRING);
+        try {
+            // The generated class keeps the logger resolved when it was first
+            // generated, which the generic path would not
+            MovingDst.OUT.logger = LogManager.getLogger("StdErr");
+            for (var logBuf : List.of(first, second)) {
+                try (var buf = new EventLog<>(logBuf)) {
+                    buf.to(MovingSet.OUT, Log.INFO).add("generated");
+                }
+            }
+            assertEquals("generated\ngenerated\n", outContent.toString());
+            assertEquals("", errContent.toString());
+
+            var generic = LogBuf.create(MovingSet.values(), LogBuf.FlushMode.STRING);
+            try (var buf = new EventLog<>(generic)) {
+                buf.to(MovingSet.OUT, Log.INFO).add("generic");
+            }
+            assertEquals("generic\n", errContent.toString());
+        } finally {
+            MovingDst.OUT.logger = LogManager.getLogger("StdOut");
+        }
+    }
+
+    @Test
+    public void testTimingMarks() {
+        var logBuf = LogBuf.create(DstSet.values(), LogBuf.FlushMode.REUSABLE_MESSAGE);
+        clockNanos = 1_000_000L;
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT_TIMED, Log.INFO).add("recv").mark();
+            clockNanos += 40_000L;
+            buf.to(DstSet.OUT_TIMED, Log.INFO).add(" parsed").mark();
+            clockNanos += 1_500_000L;
+            buf.to(DstSet.OUT_TIMED, Log.INFO).add(" sent").mark();
+            buf.to(DstSet.OUT_TIMED, Log.DEBUG).add(" disabled").mark();
+        }
+        assertEquals("recv+0\u00b5s parsed+40\u00b5s sent+1540\u00b5s\n", outContent.toString());
+
+        outContent.reset();
+        clockNanos += 5_000_000L;
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT_TIMED, Log.WARN).mark().add(" begin");
+            clockNanos += 3_000L;
+            buf.to(DstSet.OUT_TIMED, Log.INFO).add("info").mark();
+        }
+        assertEquals("info+3\u00b5s\n+0\u00b5s begin\n", outContent.toString());
+
+        // Segments are timed from the event's start, read by its first mark
+        outContent.reset();
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT_TIMED, Log.INFO).add("unmarked");
+            clockNanos += 2_000L;
+            buf.to(DstSet.OUT_TIMED, Log.INFO).add(" start").mark();
+            clockNanos += 5_000L;
+            buf.fork(0).to(DstSet.OUT_TIMED, Log.INFO).add(" forked").mark();
+        }
+        assertEquals("unmarked start+0\u00b5s forked+5\u00b5s\n", outContent.toString());
+    }
+
+    @Test
+    public void testMetrics() {
+        var logBuf = LogBuf.create(DstSet.values());
+        try (var buf = new EventLog<>(logBuf)) {
+            buf.to(DstSet.OUT_ERR, Log.INFO).add("unmeasured");
+        }
+        outContent.reset();
+        errContent.reset();
+        LogMetrics.enable();
+        try {
+            var before = volume(DstSet.OUT_ERR, Log.INFO);
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(DstSet.OUT_ERR, Log.INFO).add("abc");
+                buf.to(DstSet.OUT_ERR, Log.INFO).add("de");
+                buf.to(DstSet.OUT_ERR, Log.DEBUG).add("disabled");
+            }
+            Log.INFO.to(DstSet.OUT_ERR, "fgh");
+            var after = volume(DstSet.OUT_ERR, Log.INFO);
+            assertEquals(3, after.events() - before.events());
+            assertEquals(8, after.length() - before.length());
+
+            var snapshot = LogMetrics.snapshot();
+            assertTrue(snapshot.flushNanos().count() > 0);
+            assertTrue(snapshot.loggerCallsPerFlush().valueAt(1.0) >= 2);
+            assertTrue(snapshot.bufferCapacity().valueAt(1.0) >= 5);
+        } finally {
+            LogMetrics.disable();
+        }
+    }
+
+    private static LogMetrics.Volume volume(LogDstSet<?> set, Log level) {
+        return LogMetrics.snapshot().volumes().stream()
+            .filter(v -> v.set() == set && v.level() == level)
+            .findFirst()
+            .orElse(new LogMetrics.Volume(set, level, 0, 0));
+    }
+
     enum Dst implements LogDst {
         OUT("StdOut"),
         ERR("StdErr");
@@ -130,7 +716,33 @@ public class EventLogTest {
     enum DstSet implements LogDstSet<Dst> {
         OUT(Dst.OUT),
         ERR(Dst.ERR),
-        OUT_ERR(Dst.OUT, Dst.ERR);
+        OUT_ERR(Dst.OUT, Dst.ERR),
+        OUT_DIRECT(Dst.OUT) {
+            @Override
+            public boolean offHeap() {
+                return true;
+            }
+        },
+        OUT_SAMPLED(Dst.OUT) {
+            @Override
+            public RateLimit rateLimit(Log log) {
+                return log == Log.WARN
+                        ? RateLimit.oneIn(3).withSummaryInterval(Duration.ofMillis(200))
+                        : null;
+            }
+        },
+        OUT_DEDUP(Dst.OUT) {
+            @Override
+            public StackTraceDedup stackTraceDedup() {
+                return STACK_TRACES;
+            }
+        },
+        OUT_TIMED(Dst.OUT) {
+            @Override
+            public LogClock clock() {
+                return CLOCK;
+            }
+        };
 
         private final Dst[] set;
 
@@ -143,4 +755,78 @@ public class EventLogTest {
             return set;
         }
     }
+
+    enum WideSet implements LogDstSet<Dst> {
+        W0, W1, W2, W3, W4, W5, W6, W7, W8, W9, W10, W11;
+
+        @Override
+        public Dst[] set() {
+            return new Dst[] { Dst.OUT };
+        }
+    }
+
+    enum MovingDst implements LogDst {
+        OUT;
+
+        private volatile Logger logger = LogManager.getLogger("StdOut");
+
+        @Override
+        public Logger getLogger() {
+            return logger;
+        }
+    }
+
+    enum MovingSet implements LogDstSet<MovingDst> {
+        OUT;
+
+        @Override
+        public MovingDst[] set() {
+            return new MovingDst[] { MovingDst.OUT };
+        }
+    }
+
+    // A destination whose appender throws, listed ahead of a working one
+    enum FailingDst implements LogDst {
+        FAILING {
+            @Override
+            public Logger getLogger() {
+                return FAILING_LOGGER;
+            }
+        },
+        OUT {
+            @Override
+            public Logger getLogger() {
+                return LogManager.getLogger("StdOut");
+            }
+        };
+
+        private static final Logger FAILING_LOGGER = failing("StdOut");
+
+        private static Logger failing(String name) {
+            var logger = (ExtendedLogger) LogManager.getLogger(name);
+            var factory = logger.getMessageFactory();
+            return new ExtendedLoggerWrapper(logger, name + ".Failing", factory) {
+                @Override
+                public void logMessage(String fqcn, Level level, Marker marker, Message message,
+                                       Throwable t) {
+                    throw new LoggingException("appender failed");
+                }
+            };
+        }
+    }
+
+    enum FailingSet implements LogDstSet<FailingDst> {
+        BOTH(FailingDst.FAILING, FailingDst.OUT);
+
+        private final FailingDst[] set;
+
+        FailingSet(FailingDst... dsts) {
+            this.set = dsts;
+        }
+
+        @Override
+        public FailingDst[] set() {
+            return set;
+        }
+    }
 }
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.config.Configurator;
+import org.junit.jupiter.api.Test;
+
+public class JournalTest {
+    static { Log.setLevel(Level.INFO); }
+
+    private static Journal journal;
+
+    @Test
+    public void testAppendAndRead() throws IOException {
+        var dir = Files.createTempDirectory("journal");
+        journal = Journal.open(dir, "audit", 4096, 3);
+        var reader = JournalReader.open(dir, "audit");
+        var records = new ArrayList<String>();
+        JournalReader.Sink sink = (level, millis, msg) -> records.add(level + " " + msg);
+        assertEquals(0, reader.poll(sink));
+
+        for (var mode : LogBuf.FlushMode.values()) {
+            var logBuf = LogBuf.create(DstSet.values(), mode);
+            try (var buf = new EventLog<>(logBuf)) {
+                buf.to(DstSet.HEAP, Log.ERROR).add("heap ").add(1).add(" é€𝄞");
+                buf.to(DstSet.DIRECT, Log.FATAL).add("direct ").add(2L).add(" é€𝄞");
+            }
+        }
+        Log.ERROR.to(DstSet.HEAP, "string");
+
+        assertEquals(7, reader.poll(sink));
+        assertEquals(List.of(
+                "ERROR heap 1 é€𝄞", "FATAL direct 2 é€𝄞",
+                "ERROR heap 1 é€𝄞", "FATAL direct 2 é€𝄞",
+                "ERROR heap 1 é€𝄞", "FATAL direct 2 é€𝄞",
+                "ERROR string"), records);
+
+        records.clear();
+        int read = 0;
+        for (int i = 0; i < 500; i++) {
+            journal.append(Log.WARN, "record " + i);
+            if (i % 100 == 99) {
+                read += reader.poll(sink);
+            }
+        }
+        journal.append(Log.WARN, "x".repeat(10_000));
+        read += reader.poll(sink);
+        assertEquals(501, read);
+        assertEquals("WARN record 0", records.get(0));
+        assertEquals("WARN record 499", records.get(499));
+        assertTrue(records.get(500).length() < 4096);
+        assertFalse(Files.exists(Journal.segment(dir, "audit", 0)));
+        assertEquals(0, reader.poll(sink));
+        reader.close();
+        journal.append(Log.WARN, "after close");
+        assertEquals(1, reader.poll(sink));
+        journal.close();
+        assertThrows(IllegalStateException.class, () -> journal.append(Log.WARN, "closed"));
+    }
+
+    @Test
+    public void testLoggerLevelGatesJournal() throws IOException {
+        var dir = Files.createTempDirectory("journal");
+        journal = Journal.open(dir, "quiet", 4096, 3);
+        var records = new ArrayList<String>();
+        try (var reader = JournalReader.open(dir, "quiet")) {
+            Configurator.setLevel(Dst.QUIET.getLogger().getName(), Level.ERROR);
+            Log.WARN.to(DstSet.QUIET, "dropped");
+            Log.ERROR.to(DstSet.QUIET, "kept");
+            reader.poll((level, millis, msg) -> records.add(level + " " + msg));
+        } finally {
+            journal.close();
+        }
+        assertEquals(List.of("ERROR kept"), records);
+    }
+
+    @Test
+    public void testReopenDeletesOldSegments() throws IOException {
+        var dir = Files.createTempDirectory("journal");
+        for (int run = 0; run < 5; run++) {
+            journal = Journal.open(dir, "runs", 4096, 3);
+            journal.append(Log.WARN, "run " + run);
+            journal.close();
+        }
+        assertEquals(2, Journal.firstSegment(dir, "runs"));
+        assertEquals(4, Journal.lastSegment(dir, "runs"));
+        try (var files = Files.list(dir)) {
+            assertEquals(3, files.count());
+        }
+    }
+
+    @Test
+    public void testStalledRecord() throws IOException {
+        var dir = Files.createTempDirectory("journal");
+        // A segment whose writer reserved a record and never committed it
+        var stalled = ByteBuffer.allocate(4096).order(ByteOrder.nativeOrder());
+        stalled.putLong(0, Journal.MAGIC);
+        stalled.putLong(Journal.TAIL, Journal.HEADER + 32);
+        stalled.putInt(Journal.CAPACITY, 4096);
+        stalled.putLong(Journal.WRITER_PID, ProcessHandle.current().pid());
+        Files.write(Journal.segment(dir, "stall", 0), stalled.array());
+        journal = Journal.open(dir, "stall", 4096, 3);
+        journal.append(Log.WARN, "next segment");
+        journal.close();
+
+        var records = new ArrayList<String>();
+        JournalReader.Sink sink = (level, millis, msg) -> records.add(msg.toString());
+        try (var waiting = JournalReader.open(dir, "stall", Duration.ofHours(1))) {
+            assertEquals(0, waiting.poll(sink));
+            assertEquals(0, waiting.poll(sink));
+        }
+        try (var impatient = JournalReader.open(dir, "stall", Duration.ZERO)) {
+            assertEquals(0, impatient.poll(sink));
+            assertEquals(1, impatient.poll(sink));
+        }
+        assertEquals(List.of("next segment"), records);
+    }
+
+    enum Dst implements LogDst {
+        HEAP("Journal"),
+        DIRECT("Journal"),
+        QUIET("Journal.Quiet");
+
+        private final Logger logger;
+
+        Dst(String loggerName) {
+            this.logger = LogManager.getLogger(loggerName);
+        }
+
+        @Override
+        public Logger getLogger() {
+            return logger;
+        }
+
+        @Override
+        public Journal journal() {
+            return journal;
+        }
+    }
+
+    enum DstSet implements LogDstSet<Dst> {
+        HEAP(Dst.HEAP),
+        DIRECT(Dst.DIRECT) {
+            @Override
+            public boolean offHeap() {
+                return true;
+            }
+        },
+        QUIET(Dst.QUIET);
+
+        private final Dst[] set;
+
+        DstSet(Dst... dsts) {
+            this.set = dsts;
+        }
+
+        @Override
+        public Dst[] set() {
+            return set;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+/**
+ * Drives {@link EventLog}s from several producer threads at a fixed arrival
+ * rate and measures each event's append-plus-flush latency and the bytes
+ * its producer allocated.
+ *
+ * <p> Each producer has a {@link LogBuf} of its own and first logs
+ * {@code warmupEvents} events unpaced, to let the JIT settle. It then logs
+ * {@code events} events scheduled every {@code intervalNanos}, and records
+ * each one's latency from the time it was scheduled rather than the time it
+ * started. A stall therefore counts against every event queued behind it,
+ * which corrects for coordinated omission.
+ */
+final class LoadHarness {
+    record Config(int producers, int warmupEvents, int events, long intervalNanos) {}
+
+    record Result(Histogram latency, long events, double bytesPerEvent) {
+        @Override
+        public String toString() {
+            return String.format(
+                    "events=%d p50=%dus p99=%dus p99.9=%dus max=%dus alloc=%.1fB/event",
+                    events, latency.valueAt(0.5) / 1000, latency.valueAt(0.99) / 1000,
+                    latency.valueAt(0.999) / 1000, latency.max() / 1000, bytesPerEvent);
+        }
+    }
+
+    /**
+     * Logs one event, numbered {@code seq}, to {@code eventLog}, which the
+     * harness closes afterwards.
+     */
+    @FunctionalInterface
+    interface Event<S extends Enum<S> & LogDstSet<?>> {
+        void log(EventLog<S> eventLog, long seq);
+    }
+
+    private LoadHarness() {}
+
+    static <S extends Enum<S> & LogDstSet<?>> Result run(
+            Config config, Supplier<LogBuf<S>> logBufs, Event<S> event)
+            throws InterruptedException {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var histograms = new Histogram[config.producers()];
+        var allocated = new long[config.producers()];
+        var ready = new CountDownLatch(config.producers());
+        var go = new CountDownLatch(1);
+        var producers = new Thread[config.producers()];
+        for (int p = 0; p < producers.length; p++) {
+            int id = p;
+            var eventLog = new EventLog<>(logBufs.get());
+            var histogram = histograms[p] = new Histogram();
+            producers[p] = Thread.ofPlatform().name("producer-" + p).start(() -> {
+                long seq = (long) id << 32;
+                for (int i = 0; i < config.warmupEvents(); i++) {
+                    event.log(eventLog, seq++);
+                    eventLog.close();
+                }
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                long before = threads.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < config.events(); i++) {
+                    long scheduled = start + i * config.intervalNanos();
+                    while (System.nanoTime() < scheduled) {
+                        Thread.onSpinWait();
+                    }
+                    event.log(eventLog, seq++);
+                    eventLog.close();
+                    histogram.record(System.nanoTime() - scheduled);
+                }
+                allocated[id] = threads.getCurrentThreadAllocatedBytes() - before;
+            });
+        }
+        ready.await();
+        go.countDown();
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        var latency = new Histogram();
+        long bytes = 0;
+        for (int p = 0; p < producers.length; p++) {
+            latency.add(histograms[p]);
+            bytes += allocated[p];
+        }
+        long events = (long) config.producers() * config.events();
+        return new Result(latency, events, (double) bytes / events);
+    }
+
+    /**
+     * A log-linear histogram of nanosecond values: exact below 32, and
+     * otherwise in 16 sub-buckets per power of two, so within about 6%.
+     */
+    static final class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+        private static final int HALF = SUB >>> 1;
+
+        private final long[] counts = new long[SUB + (64 - SUB_BITS) * HALF];
+        private long total;
+        private long max;
+
+        void record(long value) {
+            value = Math.max(value, 0L);
+            counts[index(value)]++;
+            total++;
+            max = Math.max(max, value);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            total += other.total;
+            max = Math.max(max, other.max);
+        }
+
+        long count() {
+            return total;
+        }
+
+        long max() {
+            return max;
+        }
+
+        /**
+         * The highest value in the bucket holding the value at
+         * {@code quantile}, capped at the largest value recorded.
+         */
+        long valueAt(double quantile) {
+            long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+
+        static int index(long value) {
+            if (value < SUB) {
+                return (int) value;
+            }
+            int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+            int sub = (int) (value >>> shift) - HALF;
+            return SUB + (shift - 1) * HALF + sub;
+        }
+
+        static long upperBound(int index) {
+            if (index < SUB) {
+                return index;
+            }
+            int shift = (index - SUB) / HALF + 1;
+            long sub = (index - SUB) % HALF + HALF;
+            return ((sub + 1) << shift) - 1;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.abissell.logutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilder;
+import org.apache.logging.log4j.core.config.builder.api.ConfigurationBuilderFactory;
+import org.apache.logging.log4j.core.config.builder.impl.BuiltConfiguration;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestReporter;
+
+/**
+ * Runs {@link LoadHarness} against file-backed log4j configurations and
+ * fails if the p99 latency or bytes allocated per event exceed their
+ * budgets. The budgets may be overridden with the system properties
+ * {@code logutil.load.p99Micros}, {@code logutil.load.bytesPerEvent} and
+ * {@code logutil.load.asyncAppenderBytesPerEvent}.
+ *
+ * <p> Tagged {@code load} and left out of the default {@code test} task,
+ * since its latency budgets depend on the machine; run it with the
+ * {@code loadTest} task.
+ */
+@Tag("load")
+public class LoadTest {
+    static { Log.setLevel(Level.INFO); }
+
+    private static final LoadHarness.Config CONFIG = new LoadHarness.Config(
+            Integer.getInteger("logutil.load.producers",
+                    Math.clamp(Runtime.getRuntime().availableProcessors() - 1, 1, 4)),
+            Integer.getInteger("logutil.load.warmupEvents", 20_000),
+            Integer.getInteger("logutil.load.events", 20_000),
+            Long.getLong("logutil.load.intervalNanos", 50_000L));
+    private static final long P99_MICROS = Long.getLong("logutil.load.p99Micros", 25_000L);
+    private static final long BYTES_PER_EVENT = Long.getLong("logutil.load.bytesPerEvent", 1024L);
+    private static final long ASYNC_APPENDER_BYTES_PER_EVENT =
+            Long.getLong("logutil.load.asyncAppenderBytesPerEvent", 8192L);
+
+    private static final LoadHarness.Event<LoadSet> EVENT = (eventLog, seq) -> {
+        eventLog.to(LoadSet.FILE, Log.INFO)
+                .add("order=").add(seq)
+                .add(" qty=").add((int) (seq & 0xFF))
+                .add(" px=").add(100.25);
+        eventLog.to(LoadSet.FILE, Log.INFO).add(" venue=").add("XNYS");
+        eventLog.to(LoadSet.FILE, Log.DEBUG).add(" filtered");
+    };
+
+    @Test
+    public void testSyncFileAppender(TestReporter reporter) throws Exception {
+        var dir = Files.createTempDirectory("load");
+        var builder = fileConfig(dir, "sync");
+        builder.add(builder.newLogger("Load", Level.INFO)
+                .add(builder.newAppenderRef("File"))
+                .addAttribute("additivity", false));
+        run("sync", dir, builder, BYTES_PER_EVENT, reporter);
+    }
+
+    @Test
+    public void testAsyncAppender(TestReporter reporter) throws Exception {
+        var dir = Files.createTempDirectory("load");
+        var builder = fileConfig(dir, "async-appender");
+        builder.add(builder.newAppender("Async", "Async")
+                .addAttribute("blocking", true)
+                .addAttribute("bufferSize", 8192)
+                .addComponent(builder.newAppenderRef("File")));
+        builder.add(builder.newLogger("Load", Level.INFO)
+                .add(builder.newAppenderRef("Async"))
+                .addAttribute("additivity", false));
+        run("async-appender", dir, builder, ASYNC_APPENDER_BYTES_PER_EVENT, reporter);
+    }
+
+    @Test
+    public void testAsyncLogger(TestReporter reporter) throws Exception {
+        var dir = Files.createTempDirectory("load");
+        var builder = fileConfig(dir, "async-logger");
+        builder.add(builder.newAsyncLogger("Load", Level.INFO)
+                .add(builder.newAppenderRef("File"))
+                .addAttribute("additivity", false));
+        run("async-logger", dir, builder, BYTES_PER_EVENT, reporter);
+    }
+
+    private static ConfigurationBuilder<BuiltConfiguration> fileConfig(Path dir, String name) {
+        var builder = ConfigurationBuilderFactory.newConfigurationBuilder();
+        builder.setConfigurationName(name);
+        var appenderBuilder = builder.newAppender("File", "File")
+                .addAttribute("fileName", dir.resolve(name + ".log").toString())
+                .addAttribute("append", false)
+                .addAttribute("immediateFlush", false);
+        appenderBuilder.add(builder.newLayout("PatternLayout")
+                .addAttribute("pattern", "%d{HH:mm:ss.SSS} %t %level %msg%n"));
+        builder.add(appenderBuilder);
+        return builder;
+    }
+
+    private static void run(String name, Path dir, ConfigurationBuilder<BuiltConfiguration> builder,
+                            long bytesPerEventBudget, TestReporter reporter)
+            throws InterruptedException, IOException {
+        var ctx = new LoggerContext("load-" + name);
+        LoadHarness.Result result;
+        try {
+            ctx.start(builder.build());
+            LoadDst.FILE.logger = ctx.getLogger("Load");
+            Log.invalidateLevels();
+            result = LoadHarness.run(CONFIG,
+                    () -> LogBuf.create(LoadSet.values(), LogBuf.FlushMode.REUSABLE_MESSAGE),
+                    EVENT);
+        } finally {
+            ctx.stop();
+        }
+        reporter.publishEntry(name, result.toString());
+
+        long lines;
+        try (var log = Files.lines(dir.resolve(name + ".log"))) {
+            lines = log.count();
+        }
+        assertEquals((long) CONFIG.producers() * (CONFIG.warmupEvents() + CONFIG.events()), lines);
+        assertEquals(result.events(), result.latency().count());
+        assertTrue(result.latency().valueAt(0.99) <= P99_MICROS * 1000,
+                name + " p99 over budget of " + P99_MICROS + "us: " + result);
+        assertTrue(result.bytesPerEvent() <= bytesPerEventBudget,
+                name + " allocation over budget of " + bytesPerEventBudget + "B/event: " + result);
+    }
+
+    enum LoadDst implements LogDst {
+        FILE;
+
+        private volatile Logger logger;
+
+        @Override
+        public Logger getLogger() {
+            return logger;
+        }
+    }
+
+    enum LoadSet implements LogDstSet<LoadDst> {
+        FILE(LoadDst.FILE);
+
+        private final LoadDst[] set;
+
+        LoadSet(LoadDst... dsts) {
+            this.set = dsts;
+        }
+
+        @Override
+        public LoadDst[] set() {
+            return set;
+        }
+    }
+}
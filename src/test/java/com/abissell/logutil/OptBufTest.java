@@ -0,0 +1,222 @@
+/*
+ * Copyright 2024 Andrew Bissell. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.abissell.logutil;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class OptBufTest {
+    @AfterEach
+    public void unregisterDeferredTypes() {
+        DeferredTypes.unregister(Counter.class);
+    }
+
+    private static OptBuf[] bufs() {
+        return new OptBuf[] {
+            new OptBuf.Buf(new StringBuilder()),
+            new OptBuf.Direct(16),
+            new OptBuf.Fields(OptBuf.Fields.Format.KEY_VALUE)
+        };
+    }
+
+    @Test
+    public void testNumericFormats() {
+        for (OptBuf buf : bufs()) {
+            buf.addFixed(1.0000000000000002E-5, 6).add(' ')
+                .addFixed(101.0625, 2).add(' ')
+                .addFixed(-2.5, 0).add(' ')
+                .addFixed(-0.001, 2);
+            assertEquals("0.000010 101.06 -3 0.00", buf.getAndClear());
+
+            buf.addScaled(12345, 2).add(' ')
+                .addScaled(-5, 3).add(' ')
+                .addScaled(7, 0);
+            assertEquals("123.45 -0.005 7", buf.getAndClear());
+
+            buf.addPadded(42, 5).add(' ')
+                .addPadded(-42, 5).add(' ')
+                .addPadded(123456, 2);
+            assertEquals("00042 -00042 123456", buf.getAndClear());
+
+            buf.addHex(255).add(' ')
+                .addHex(-1L).add(' ')
+                .addHex(0xab, 8).add(' ')
+                .addBinary(5, 8);
+            assertEquals("ff ffffffffffffffff 000000ab 00000101", buf.getAndClear());
+
+            buf.addBytes(512).add(' ')
+                .addBytes(1536).add(' ')
+                .addBytes(1048575);
+            assertEquals("512 B 1.5 KiB 1.0 MiB", buf.getAndClear());
+        }
+
+        assertEquals(0, OptBuf.NOOP.addFixed(1.5, 2).addBytes(1024).addHex(-1L).length());
+    }
+
+    @Test
+    public void testStructuredFields() {
+        var px = LogKey.of("px");
+        var side = LogKey.of("side");
+        var ok = LogKey.of("ok");
+        assertSame(px, LogKey.of("px"));
+
+        for (OptBuf buf : bufs()) {
+            buf.add("fill").add(px, 101.5).add(side, 'B').add(ok, true).add(LogKey.of("qty"), 300);
+            assertEquals("fill px=101.5 side=B ok=true qty=300", buf.getAndClear());
+        }
+
+        var json = new OptBuf.Fields(OptBuf.Fields.Format.JSON);
+        json.add("say \"hi\"\n").add(7).add(px, 101.5).add(side, "B").add(ok, false)
+            .add(LogKey.of("nan"), Double.NaN).addHex(255);
+        assertEquals("{\"msg\":\"say \\\"hi\\\"\\n7ff\",\"px\":101.5,\"side\":\"B\","
+                + "\"ok\":false,\"nan\":\"NaN\"}", json.getAndClear());
+
+        json.add(px, 1L);
+        assertEquals("{\"px\":1}", json.getAndClear());
+        assertEquals("{}", json.getAndClear());
+
+        var fields = new OptBuf.Fields(OptBuf.Fields.Format.KEY_VALUE);
+        fields.add("abc").add(px, 2L).add("defgh");
+        fields.truncate(fields.length() - 1);
+        assertEquals("abc px=2", fields.getAndClear());
+        assertEquals(0, fields.length());
+    }
+
+    @Test
+    public void testTemplates() {
+        var fill = LogTemplate.of("fill {} px={.2} qty={05} id={x} {{}ok{}}");
+        assertEquals(5, fill.slots());
+        for (OptBuf buf : bufs()) {
+            fill.to(buf).arg(7).arg(101.5).arg(42).arg(255).arg(true);
+            assertEquals("fill 7 px=101.50 qty=00042 id=ff {oktrue}", buf.getAndClear());
+
+            var args = fill.to(buf).arg("a").arg(1.25f);
+            assertEquals("fill a px=1.25 qty=", buf.getAndClear());
+            assertSame(buf, args.buf());
+        }
+
+        assertSame(OptBuf.NOOP,
+                fill.to(OptBuf.NOOP).arg(1).arg(2).arg(3).arg(4).arg(5).arg(6).buf());
+        var one = LogTemplate.of("{}");
+        assertThrows(IllegalStateException.class,
+                () -> one.to(new OptBuf.Buf(new StringBuilder())).arg(1).arg(2));
+        assertThrows(IllegalArgumentException.class, () -> LogTemplate.of("px={q}"));
+    }
+
+    @Test
+    public void testBulkAppends() {
+        long[] ids = { 7, 8, 9, 10, 11 };
+        var levels = List.of(new int[] { 101, 5 }, new int[] { 100, 20 }, new int[] { 99, 1 });
+        for (OptBuf buf : bufs()) {
+            buf.addAll(ids, 1, 3, ",", Integer.MAX_VALUE);
+            assertEquals("8,9,10", buf.getAndClear());
+            buf.addAll(ids, 0, ids.length, ", ", 2);
+            assertEquals("7, 8, \u2026(+3 more)", buf.getAndClear());
+            buf.addAll(new int[] { 1, 2 }, 0, 2, " ", 0);
+            assertEquals("\u2026(+2 more)", buf.getAndClear());
+            buf.addAll(new double[] { 0.5, 1.25 }, 0, 2, "/", 5);
+            assertEquals("0.5/1.25", buf.getAndClear());
+            buf.addAll(new long[0], 0, 0, ",", 3);
+            assertEquals("", buf.getAndClear());
+
+            buf.add('[')
+                    .addAll(levels, (lvl, b) -> b.add(lvl[0]).add('x').add(lvl[1]), " ", 2)
+                    .add(']');
+            assertEquals("[101x5 100x20 \u2026(+1 more)]", buf.getAndClear());
+            buf.addAll(new ArrayDeque<>(List.of("a", "b", "c")), (str, b) -> b.add(str), "|", 2);
+            assertEquals("a|b|\u2026(+1 more)", buf.getAndClear());
+        }
+
+        var unused = new AtomicInteger();
+        assertSame(OptBuf.NOOP,
+                OptBuf.NOOP.addAll(levels, (lvl, b) -> unused.incrementAndGet(), ",", 10));
+        assertSame(OptBuf.NOOP, OptBuf.NOOP.addAll(ids, 4, 10, ",", 10));
+        assertEquals(0, unused.get());
+    }
+
+    @Test
+    public void testDeferredFormatting() {
+        DeferredTypes.register(Counter.class, c -> new Counter(c.value));
+        var fields = new OptBuf.Fields(OptBuf.Fields.Format.KEY_VALUE);
+        var counter = new Counter(1);
+        var list = new ArrayList<>(List.of(1));
+        var calls = new AtomicInteger();
+
+        fields.add(counter).add(' ').add(list).add(' ').add((Object) 42).add(' ').add(Log.INFO)
+            .add(' ').add(() -> "called" + calls.incrementAndGet());
+        counter.value = 2;
+        list.add(2);
+        assertEquals(0, counter.formatted + calls.get());
+
+        assertEquals("c1 [1] 42 INFO called1", fields.getAndClear());
+        assertEquals(1, calls.get());
+        assertEquals("", fields.getAndClear());
+    }
+
+    @Test
+    public void testTimingMarks() {
+        var now = new long[] { 5_000L };
+        var calls = new AtomicInteger();
+        LogClock clock = () -> {
+            calls.incrementAndGet();
+            return now[0];
+        };
+        var fields = new OptBuf.Fields(OptBuf.Fields.Format.KEY_VALUE, clock);
+        fields.add("start").mark();
+        now[0] += 123_456L;
+        fields.add(" parsed").mark();
+        now[0] += 2_000_000L;
+        fields.add(" done").mark();
+        assertEquals(3, calls.get());
+        assertEquals("start+0\u00b5s parsed+123\u00b5s done+2123\u00b5s", fields.getAndClear());
+
+        var eventStart = new LogBuf.EventStart();
+        eventStart.at(now[0] - 7_000L);
+        var timed = new OptBuf.Fields(OptBuf.Fields.Format.KEY_VALUE, clock, eventStart);
+        timed.mark();
+        assertEquals("+7\u00b5s", timed.getAndClear());
+
+        OptBuf.NOOP.mark();
+        new OptBuf.Buf(new StringBuilder()).mark();
+        new OptBuf.Fields(OptBuf.Fields.Format.KEY_VALUE).mark();
+        assertEquals(4, calls.get());
+    }
+
+    static final class Counter {
+        int value;
+        int formatted;
+
+        Counter(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            formatted++;
+            return "c" + value;
+        }
+    }
+}